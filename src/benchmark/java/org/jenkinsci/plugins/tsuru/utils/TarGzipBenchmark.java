@@ -0,0 +1,203 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Throughput of the deployment archive on synthetic workspaces.
+ *
+ * Besides ops/s, every benchmark reports the archived megabytes/s and files/s, run with
+ * {@code -prof gc} (the profile default) for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TarGzipBenchmark {
+
+    public enum Shape {
+        // A web application: sources, templates and assets
+        SMALL_FILES,
+        // Binaries and bundled dependencies
+        HUGE_FILES,
+        // Deep package hierarchies, node_modules-like
+        DEEP_TREE,
+        // Shared libraries and vendored directories linked into the workspace
+        SYMLINKS
+    }
+
+    @Param({"SMALL_FILES", "HUGE_FILES", "DEEP_TREE", "SYMLINKS"})
+    public Shape shape;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean tsuruignore;
+
+    private File workspace;
+
+    private File output;
+
+    private ArchiveOptions options;
+
+    private List<File> files;
+
+    // What one archive holds, to turn ops/s into MB/s and files/s
+    private long archivedBytes;
+
+    private long archivedFiles;
+
+    /**
+     * Rates of the archived content, reported next to the benchmark score
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Archived {
+        public double megabytes;
+        public long files;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+            files = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workspace = Files.createTempDirectory("tsuru-bench-workspace").toFile();
+        output = File.createTempFile("tsuru-bench", ".tar.gz");
+        Random random = new Random(42);
+
+        switch (shape) {
+            case SMALL_FILES:
+                for (int i = 0; i < 5000; i++) {
+                    writeFile(new File(workspace, "src/module" + (i % 50) + "/file" + i + ".py"), 512 + random.nextInt(16 * 1024), random);
+                }
+                break;
+            case HUGE_FILES:
+                for (int i = 0; i < 3; i++) {
+                    writeFile(new File(workspace, "bin/blob" + i + ".bin"), 64 * 1024 * 1024, random);
+                }
+                break;
+            case DEEP_TREE:
+                for (int tree = 0; tree < 20; tree++) {
+                    StringBuilder dir = new StringBuilder("node_modules/package" + tree);
+                    for (int depth = 0; depth < 30; depth++) {
+                        dir.append("/level").append(depth);
+                        writeFile(new File(workspace, dir + "/index.js"), 256 + random.nextInt(4096), random);
+                    }
+                }
+                break;
+            case SYMLINKS:
+                File shared = new File(workspace, "shared");
+                for (int i = 0; i < 200; i++) {
+                    writeFile(new File(shared, "lib" + i + ".so"), 4096 + random.nextInt(64 * 1024), random);
+                }
+                File links = new File(workspace, "links");
+                links.mkdirs();
+                for (int i = 0; i < 2000; i++) {
+                    Files.createSymbolicLink(new File(links, "file" + i).toPath(), new File(shared, "lib" + (i % 200) + ".so").toPath());
+                }
+                for (int i = 0; i < 200; i++) {
+                    Files.createSymbolicLink(new File(links, "dir" + i).toPath(), shared.toPath());
+                    Files.createSymbolicLink(new File(links, "dangling" + i).toPath(), new File(workspace, "missing" + i).toPath());
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown shape " + shape);
+        }
+
+        // Logs and build leftovers, dropped by the .tsuruignore
+        for (int i = 0; i < 500; i++) {
+            writeFile(new File(workspace, "logs/build" + i + ".log"), 1024 + random.nextInt(8192), random);
+            writeFile(new File(workspace, "tmp/cache" + i + ".tmp"), 1024 + random.nextInt(8192), random);
+        }
+        if (tsuruignore) {
+            FileUtils.writeLines(new File(workspace, TsuruIgnore.FILENAME), "UTF-8",
+                    Arrays.asList("# build leftovers", "logs/", "*.tmp", "!tmp/keep.tmp", "**/level2[0-9]/*.js"));
+        }
+
+        options = new ArchiveOptions();
+        options.setThreads(threads);
+        options.setIgnore(TsuruIgnore.load(workspace));
+        files = Arrays.asList(workspace.listFiles());
+
+        // Count what actually ends up in the archive
+        TarGzip.compressFile(workspace, output, options);
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(new FileInputStream(output)))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (entry.isFile()) {
+                    archivedFiles++;
+                    archivedBytes += entry.getSize();
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workspace);
+        Files.deleteIfExists(output.toPath());
+    }
+
+    /**
+     * Streaming path: the workspace children compressed straight into the request body
+     */
+    @Benchmark
+    public void compressFiles(Archived archived) throws IOException {
+        TarGzip.compressFiles(files, NullOutputStream.NULL_OUTPUT_STREAM, options);
+        count(archived);
+    }
+
+    /**
+     * Staged path: the workspace compressed into a temporary file
+     */
+    @Benchmark
+    public File compressFile(Archived archived) throws IOException {
+        TarGzip.compressFile(workspace, output, options);
+        count(archived);
+        return output;
+    }
+
+    private void count(Archived archived) {
+        archived.megabytes += archivedBytes / (1024.0 * 1024.0);
+        archived.files += archivedFiles;
+    }
+
+    /**
+     * Writes text-like content, compressible but not trivially, with a mix of permissions
+     */
+    private static void writeFile(File file, int size, Random random) throws IOException {
+        file.getParentFile().mkdirs();
+        byte[] words = "def class return import self value config deploy tsuru app\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = random.nextInt(16) == 0 ? (byte) random.nextInt(256) : words[random.nextInt(words.length)];
+        }
+        Files.write(file.toPath(), content);
+        String permissions = random.nextInt(4) == 0 ? "rwxr-xr-x" : "rw-r--r--";
+        try {
+            Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString(permissions));
+        } catch (UnsupportedOperationException e) {
+            // Windows, the archive falls back to default modes
+        }
+    }
+}
@@ -5,12 +5,15 @@ import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 
 public class Tsuru extends AbstractDescribableImpl<Tsuru> {
@@ -25,11 +28,46 @@ public class Tsuru extends AbstractDescribableImpl<Tsuru> {
 
         public List<TsuruConfig> clusterConfigs;
 
+        // Clusters by case insensitive name, rebuilt when the configuration is loaded or saved
+        private transient volatile Map<String, TsuruConfig> clustersByName = Collections.emptyMap();
+
         public DescriptorImpl() {
             configVersion = 1L;
             load();
         }
 
+        /**
+         * @return The descriptor Jenkins holds, whose configuration is only read from disk at startup
+         */
+        public static DescriptorImpl get() {
+            return Jenkins.get().getDescriptorByType(DescriptorImpl.class);
+        }
+
+        @Override
+        public synchronized void load() {
+            super.load();
+            index();
+        }
+
+        @Override
+        public synchronized void save() {
+            index();
+            super.save();
+        }
+
+        private void index() {
+            Map<String, TsuruConfig> index = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            if (clusterConfigs != null) {
+                for (TsuruConfig cc : clusterConfigs) {
+                    if (cc.getName() != null) {
+                        // The first one wins, as it did when the list was searched
+                        index.putIfAbsent(cc.getName(), cc);
+                    }
+                }
+            }
+            clustersByName = Collections.unmodifiableMap(index);
+        }
+
         @Override
         public String getDisplayName() {
             return "Tsuru Configuration";
@@ -78,17 +116,11 @@ public class Tsuru extends AbstractDescribableImpl<Tsuru> {
          * @return A ClusterConfig for the supplied parameters OR null.
          */
         public TsuruConfig getClusterConfig(String name) {
-            if (clusterConfigs == null) {
-                return null;
-            }
-
             name = Util.fixEmptyAndTrim(name);
-            for (TsuruConfig cc : clusterConfigs) {
-                if (cc.getName().equalsIgnoreCase(name)) {
-                    return cc;
-                }
+            if (name == null) {
+                return null;
             }
-            return null;
+            return clustersByName.get(name);
         }
 
     }
@@ -28,11 +28,85 @@ public class TsuruConfig extends AbstractDescribableImpl<TsuruConfig> implements
 
     private String credentialsId;
 
+    // Stream the deployment archive to Tsuru while it is generated, instead of staging it on disk.
+    private boolean streamingDeploy;
+
+    // Gzip workers used to compress the deployment archive, 0 means one per core.
+    private Integer compressionThreads = 1;
+
+    // Size in KB of the blocks compressed in parallel.
+    private Integer compressionBlockSize = 128;
+
+    // Keep the compressed files on the agent and only compress what changed since the last archive.
+    private boolean incrementalArchive;
+
+    // Sorted entries with normalized times and owners, so unchanged sources can skip the upload.
+    private boolean reproducibleArchive;
+
+    // Fingerprint the workspace and skip the deployment when it did not change since the last one.
+    private boolean skipUnchangedDeploy;
+
+    // Times an upload failing before Tsuru got the whole archive is sent again, 0 disables retries.
+    private Integer uploadRetries = 3;
+
+    // Deployments running at once on the cluster, others wait in a queue. 0 means no limit.
+    private Integer maxClusterDeploys = 0;
+
+    // Deployments of a same application running at once, others wait in a queue. 0 means no limit.
+    private Integer maxAppDeploys = 1;
+
+    // Idle connections to the API kept by each controller and agent.
+    private Integer httpMaxIdleConnections = 5;
+
+    // Seconds an idle connection to the API is kept.
+    private Integer httpKeepAlive = 300;
+
+    // Timeouts in seconds of the API requests.
+    private Integer httpConnectTimeout = 10;
+
+    private Integer httpReadTimeout = 10;
+
+    // Speak HTTP/1.1 to the API even when HTTP/2 could be negotiated.
+    private boolean disableHttp2;
+
     @DataBoundConstructor
     public TsuruConfig(String name) {
         this.name = name;
     }
 
+    // Options added after a cluster was saved are missing from its configuration: XStream neither
+    // runs the field initializers nor the constructor, so they are set to their defaults here.
+    protected Object readResolve() {
+        if (compressionThreads == null) {
+            compressionThreads = 1;
+        }
+        if (compressionBlockSize == null) {
+            compressionBlockSize = 128;
+        }
+        if (uploadRetries == null) {
+            uploadRetries = 3;
+        }
+        if (maxClusterDeploys == null) {
+            maxClusterDeploys = 0;
+        }
+        if (maxAppDeploys == null) {
+            maxAppDeploys = 1;
+        }
+        if (httpMaxIdleConnections == null) {
+            httpMaxIdleConnections = 5;
+        }
+        if (httpKeepAlive == null) {
+            httpKeepAlive = 300;
+        }
+        if (httpConnectTimeout == null) {
+            httpConnectTimeout = 10;
+        }
+        if (httpReadTimeout == null) {
+            httpReadTimeout = 10;
+        }
+        return this;
+    }
+
     public String getName() {
         return name;
     }
@@ -55,6 +129,132 @@ public class TsuruConfig extends AbstractDescribableImpl<TsuruConfig> implements
         this.credentialsId = Util.fixEmptyAndTrim(credentialsId);
     }
 
+    public boolean isStreamingDeploy() {
+        return streamingDeploy;
+    }
+
+    @DataBoundSetter
+    public void setStreamingDeploy(boolean streamingDeploy) {
+        this.streamingDeploy = streamingDeploy;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    @DataBoundSetter
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = Math.max(0, compressionThreads);
+    }
+
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    @DataBoundSetter
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        this.compressionBlockSize = compressionBlockSize;
+    }
+
+    public boolean isIncrementalArchive() {
+        return incrementalArchive;
+    }
+
+    @DataBoundSetter
+    public void setIncrementalArchive(boolean incrementalArchive) {
+        this.incrementalArchive = incrementalArchive;
+    }
+
+    public boolean isReproducibleArchive() {
+        return reproducibleArchive;
+    }
+
+    @DataBoundSetter
+    public void setReproducibleArchive(boolean reproducibleArchive) {
+        this.reproducibleArchive = reproducibleArchive;
+    }
+
+    public boolean isSkipUnchangedDeploy() {
+        return skipUnchangedDeploy;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchangedDeploy(boolean skipUnchangedDeploy) {
+        this.skipUnchangedDeploy = skipUnchangedDeploy;
+    }
+
+    public int getUploadRetries() {
+        return uploadRetries;
+    }
+
+    @DataBoundSetter
+    public void setUploadRetries(int uploadRetries) {
+        this.uploadRetries = Math.max(0, uploadRetries);
+    }
+
+    public int getMaxClusterDeploys() {
+        return maxClusterDeploys;
+    }
+
+    @DataBoundSetter
+    public void setMaxClusterDeploys(int maxClusterDeploys) {
+        this.maxClusterDeploys = Math.max(0, maxClusterDeploys);
+    }
+
+    public int getMaxAppDeploys() {
+        return maxAppDeploys;
+    }
+
+    @DataBoundSetter
+    public void setMaxAppDeploys(int maxAppDeploys) {
+        this.maxAppDeploys = Math.max(0, maxAppDeploys);
+    }
+
+    public int getHttpMaxIdleConnections() {
+        return httpMaxIdleConnections;
+    }
+
+    @DataBoundSetter
+    public void setHttpMaxIdleConnections(int httpMaxIdleConnections) {
+        this.httpMaxIdleConnections = Math.max(0, httpMaxIdleConnections);
+    }
+
+    public int getHttpKeepAlive() {
+        return httpKeepAlive;
+    }
+
+    @DataBoundSetter
+    public void setHttpKeepAlive(int httpKeepAlive) {
+        this.httpKeepAlive = Math.max(0, httpKeepAlive);
+    }
+
+    public int getHttpConnectTimeout() {
+        return httpConnectTimeout;
+    }
+
+    @DataBoundSetter
+    public void setHttpConnectTimeout(int httpConnectTimeout) {
+        this.httpConnectTimeout = Math.max(0, httpConnectTimeout);
+    }
+
+    public int getHttpReadTimeout() {
+        return httpReadTimeout;
+    }
+
+    @DataBoundSetter
+    public void setHttpReadTimeout(int httpReadTimeout) {
+        this.httpReadTimeout = Math.max(0, httpReadTimeout);
+    }
+
+    public boolean isDisableHttp2() {
+        return disableHttp2;
+    }
+
+    @DataBoundSetter
+    public void setDisableHttp2(boolean disableHttp2) {
+        this.disableHttp2 = disableHttp2;
+    }
+
     @Override
     public String toString() {
         return String.format("Tsuru cluster [name:%s] [serverUrl:%s]",
@@ -103,6 +303,46 @@ public class TsuruConfig extends AbstractDescribableImpl<TsuruConfig> implements
             return FormValidation.validateRequired(value);
         }
 
+        public FormValidation doCheckCompressionThreads(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckCompressionBlockSize(@QueryParameter String value) {
+            FormValidation validation = FormValidation.validatePositiveInteger(value);
+            if (validation.kind == FormValidation.Kind.OK && Integer.parseInt(value) < 32) {
+                return FormValidation.error("Block size must be at least 32 KB");
+            }
+            return validation;
+        }
+
+        public FormValidation doCheckUploadRetries(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxClusterDeploys(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxAppDeploys(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckHttpMaxIdleConnections(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckHttpKeepAlive(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckHttpConnectTimeout(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckHttpReadTimeout(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         public ListBoxModel doFillCredentialsIdItems(
                 @QueryParameter String credentialsId) {
             // It is valid to choose no default credential, so enable
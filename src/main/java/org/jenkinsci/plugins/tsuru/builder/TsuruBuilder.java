@@ -106,7 +106,7 @@ public class TsuruBuilder extends Builder {
     }
 
     protected TsuruConfig getCluster(Map<String, String> overrides) {
-        return (new Tsuru.DescriptorImpl()).getClusterConfig(getClusterName(overrides));
+        return Tsuru.DescriptorImpl.get().getClusterConfig(getClusterName(overrides));
     }
 
     protected boolean runTsuruCommand(final AbstractBuild build,
@@ -304,8 +304,7 @@ public class TsuruBuilder extends Builder {
 
         public ListBoxModel doFillClusterNameItems() {
             ListBoxModel items = new ListBoxModel();
-            List<TsuruConfig> clusters = (new Tsuru.DescriptorImpl())
-                    .getClusterConfigs();
+            List<TsuruConfig> clusters = Tsuru.DescriptorImpl.get().getClusterConfigs();
             for (TsuruConfig c : clusters) {
                 items.add(c.getName(), c.getName());
             }
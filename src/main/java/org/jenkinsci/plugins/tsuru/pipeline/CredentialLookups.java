@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import hudson.model.Run;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Credential lookups of the pipelines, timed: folder scoped providers and external vaults make
+ * them slow. Lookups, their total and longest time are published over JMX as
+ * {@code org.jenkinsci.plugins.tsuru:type=CredentialLookups}.
+ */
+public final class CredentialLookups {
+
+    private static final Logger LOGGER = Logger.getLogger(CredentialLookups.class.getName());
+
+    private static final AtomicLong LOOKUPS = new AtomicLong();
+
+    private static final AtomicLong TOTAL_MILLIS = new AtomicLong();
+
+    private static final AtomicLong MAX_MILLIS = new AtomicLong();
+
+    static {
+        StaticMetrics.register(CredentialLookups.class);
+    }
+
+    private CredentialLookups() {
+    }
+
+    /**
+     * @param id The credential id
+     * @param type The credential type
+     * @param run The build using it
+     * @return The credential, null when there is none of this type
+     */
+    public static <C extends Credentials> C find(String id, Class<C> type, Run<?, ?> run) {
+        long start = System.nanoTime();
+        try {
+            return CredentialsProvider.findCredentialById(id, type, run, Collections.emptyList());
+        } finally {
+            long millis = (System.nanoTime() - start) / 1000000;
+            LOOKUPS.incrementAndGet();
+            TOTAL_MILLIS.addAndGet(millis);
+            MAX_MILLIS.accumulateAndGet(millis, Math::max);
+            LOGGER.log(Level.FINE, "Looked up the {0} credential {1} in {2} ms", new Object[]{type.getSimpleName(), id, millis});
+        }
+    }
+
+    /**
+     * @return The number of lookups since startup
+     */
+    public static long getLookups() {
+        return LOOKUPS.get();
+    }
+
+    /**
+     * @return The time spent in lookups since startup, in milliseconds
+     */
+    public static long getTotalMillis() {
+        return TOTAL_MILLIS.get();
+    }
+
+    /**
+     * @return The longest lookup since startup, in milliseconds
+     */
+    public static long getMaxMillis() {
+        return MAX_MILLIS.get();
+    }
+}
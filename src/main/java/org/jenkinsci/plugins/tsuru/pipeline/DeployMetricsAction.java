@@ -0,0 +1,40 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import org.jenkinsci.plugins.tsuru.utils.DeployMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the phase timings and archive sizes of the Tsuru deploys and builds of a build,
+ * summarized on its page.
+ */
+public class DeployMetricsAction extends InvisibleAction {
+
+    private final List<DeployMetrics> deployments = new ArrayList<>();
+
+    public synchronized List<DeployMetrics> getDeployments() {
+        return new ArrayList<>(deployments);
+    }
+
+    public synchronized void add(DeployMetrics metrics) {
+        deployments.add(metrics);
+    }
+
+    /**
+     * Records the measures of a deploy or build made by the build
+     */
+    public static void record(Run<?, ?> run, DeployMetrics metrics) {
+        DeployMetricsAction action;
+        synchronized (run) {
+            action = run.getAction(DeployMetricsAction.class);
+            if (action == null) {
+                action = new DeployMetricsAction();
+                run.addAction(action);
+            }
+        }
+        action.add(metrics);
+    }
+}
@@ -0,0 +1,264 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import org.jenkinsci.plugins.tsuru.utils.StepArgs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Controller wide queue of the deployments, bounding those running at once per cluster and per
+ * application. Tsuru serializes the deployments of an application and fails the ones arriving
+ * meanwhile: queued here, they wait their turn (first come, first served) instead.
+ *
+ * Agents ask for a slot right before uploading, once their archive is ready, so the archives of
+ * queued deployments are made while waiting. The step waits for its agent meanwhile, outside the
+ * cap of the {@link TsuruStepExecutor}. Slots left by an agent (disconnected before releasing them) are released
+ * when its step ends. Queued and running deployments, and the total time spent waiting, are
+ * published over JMX as {@code org.jenkinsci.plugins.tsuru:type=DeployScheduler}.
+ */
+public final class DeployScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(DeployScheduler.class.getName());
+
+    // Slots of each cluster, and of each application of a cluster
+    private static final Map<String, Limit> LIMITS = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger QUEUED = new AtomicInteger();
+
+    private static final AtomicInteger RUNNING = new AtomicInteger();
+
+    private static final AtomicLong WAITED = new AtomicLong();
+
+    static {
+        StaticMetrics.register(DeployScheduler.class);
+    }
+
+    private DeployScheduler() {
+    }
+
+    /**
+     * @param cluster The Tsuru API URL
+     * @param args The step arguments, holding the limits of the cluster
+     * @return The slots of the cluster for a step, exported to its agent and closed when it ends
+     */
+    static Slots slots(String cluster, Map<String, String> args) {
+        return new Slots(cluster, StepArgs.getInt(args, "maxClusterDeploys", 0), StepArgs.getInt(args, "maxAppDeploys", 1));
+    }
+
+    /**
+     * Waits for a slot of the application and one of its cluster, in that order so no cluster
+     * slot is held while waiting for the application.
+     *
+     * @param clusterLimit Deployments running at once on the cluster, 0 for no limit
+     * @param appLimit Deployments running at once for the application, 0 for no limit
+     * @return The time waited in milliseconds
+     * @throws InterruptedException when aborted while waiting, no slot being held then
+     */
+    public static long acquire(String cluster, String appName, int clusterLimit, int appLimit) throws InterruptedException {
+        long start = System.nanoTime();
+        QUEUED.incrementAndGet();
+        try {
+            await(cluster + " " + appName, appLimit);
+            try {
+                await(cluster, clusterLimit);
+            } catch (InterruptedException e) {
+                release(cluster + " " + appName);
+                throw e;
+            }
+        } finally {
+            QUEUED.decrementAndGet();
+        }
+        RUNNING.incrementAndGet();
+        long waited = (System.nanoTime() - start) / 1000000;
+        WAITED.addAndGet(waited);
+        return waited;
+    }
+
+    /**
+     * Frees the slots of a deployment, handing them to the next ones queued
+     */
+    public static void release(String cluster, String appName) {
+        RUNNING.decrementAndGet();
+        release(cluster);
+        release(cluster + " " + appName);
+    }
+
+    /**
+     * @return The number of deployments waiting for a slot
+     */
+    public static int getQueuedDeploys() {
+        return QUEUED.get();
+    }
+
+    /**
+     * @return The number of deployments holding a slot
+     */
+    public static int getRunningDeploys() {
+        return RUNNING.get();
+    }
+
+    /**
+     * @return The time spent by deployments waiting for a slot since startup, in milliseconds
+     */
+    public static long getQueueWaitMillis() {
+        return WAITED.get();
+    }
+
+    private static void await(String key, int limit) throws InterruptedException {
+        CompletableFuture<Void> slot = new CompletableFuture<>();
+        LIMITS.compute(key, (k, l) -> {
+            if (l == null) {
+                l = new Limit();
+            }
+            // Follows the configuration changes
+            l.permits = limit <= 0 ? Integer.MAX_VALUE : limit;
+            l.waiters.add(slot);
+            return l;
+        });
+        dispatch(key);
+        try {
+            slot.get();
+        } catch (InterruptedException e) {
+            if (slot.cancel(false)) {
+                LIMITS.computeIfPresent(key, (k, l) -> {
+                    l.waiters.remove(slot);
+                    return l.isIdle() ? null : l;
+                });
+            } else {
+                // Granted meanwhile
+                release(key);
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void release(String key) {
+        LIMITS.computeIfPresent(key, (k, l) -> {
+            l.running--;
+            return l;
+        });
+        dispatch(key);
+    }
+
+    /**
+     * Grants the free slots to the first deployments queued, and forgets idle limits
+     */
+    private static void dispatch(String key) {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        LIMITS.computeIfPresent(key, (k, l) -> {
+            while (l.running < l.permits && !l.waiters.isEmpty()) {
+                CompletableFuture<Void> slot = l.waiters.poll();
+                if (!slot.isDone()) {
+                    l.running++;
+                    granted.add(slot);
+                }
+            }
+            return l.isIdle() ? null : l;
+        });
+        for (CompletableFuture<Void> slot : granted) {
+            if (!slot.complete(null)) {
+                // Cancelled meanwhile
+                release(key);
+            }
+        }
+    }
+
+    /**
+     * Slots of a cluster or an application, guarded by the map entry
+     */
+    private static final class Limit {
+
+        private int permits;
+
+        private int running;
+
+        private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+        boolean isIdle() {
+            return running == 0 && waiters.isEmpty();
+        }
+    }
+
+    /**
+     * Slots of a cluster, with the limits of a step, and those it holds
+     */
+    static final class Slots implements TsuruAction.DeploySlots {
+
+        private final String cluster;
+
+        private final int clusterLimit;
+
+        private final int appLimit;
+
+        // Slots granted and not released yet, by application
+        private final Map<String, Integer> held = new HashMap<>();
+
+        private boolean closed = false;
+
+        Slots(String cluster, int clusterLimit, int appLimit) {
+            this.cluster = cluster;
+            this.clusterLimit = clusterLimit;
+            this.appLimit = appLimit;
+        }
+
+        @Override
+        public long acquire(String appName) throws InterruptedException {
+            long waited = DeployScheduler.acquire(cluster, appName, clusterLimit, appLimit);
+            synchronized (this) {
+                if (!closed) {
+                    held.merge(appName, 1, Integer::sum);
+                    return waited;
+                }
+            }
+            // Granted once the step was over
+            DeployScheduler.release(cluster, appName);
+            throw new InterruptedException("The Tsuru step is over");
+        }
+
+        @Override
+        public void release(String appName) {
+            synchronized (this) {
+                Integer count = held.get(appName);
+                if (count == null) {
+                    // Already released by close()
+                    return;
+                }
+                if (count == 1) {
+                    held.remove(appName);
+                } else {
+                    held.put(appName, count - 1);
+                }
+            }
+            DeployScheduler.release(cluster, appName);
+        }
+
+        /**
+         * Releases the slots the agent did not, once the step is over
+         */
+        void close() {
+            Map<String, Integer> left;
+            synchronized (this) {
+                closed = true;
+                left = new HashMap<>(held);
+                held.clear();
+            }
+            for (Map.Entry<String, Integer> app : left.entrySet()) {
+                LOGGER.fine("Releasing " + app.getValue() + " deployment slot(s) of " + app.getKey() + " left by its agent");
+                for (int i = 0; i < app.getValue(); i++) {
+                    DeployScheduler.release(cluster, app.getKey());
+                }
+            }
+        }
+    }
+}
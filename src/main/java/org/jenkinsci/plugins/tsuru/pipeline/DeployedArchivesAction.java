@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records, per application, the workspace fingerprint and the hash of the reproducible archive
+ * deployed by a build, and the Tsuru deployment it created. Later builds skip the upload when
+ * their fingerprint or archive hash is the same and the application was not deployed by someone
+ * else in the meanwhile.
+ */
+public class DeployedArchivesAction extends InvisibleAction {
+
+    // Builds looked back for the last deployment of an application
+    private static final int MAX_LOOKBACK = 50;
+
+    private final Map<String, DeployedArchive> apps = new HashMap<>();
+
+    public synchronized DeployedArchive get(String appName) {
+        return apps.get(appName);
+    }
+
+    public synchronized void put(String appName, DeployedArchive archive) {
+        apps.put(appName, archive);
+    }
+
+    /**
+     * Records the archive deployed to an application by the build
+     */
+    public static void record(Run<?, ?> run, String appName, DeployedArchive archive) {
+        DeployedArchivesAction action;
+        synchronized (run) {
+            action = run.getAction(DeployedArchivesAction.class);
+            if (action == null) {
+                action = new DeployedArchivesAction();
+                run.addAction(action);
+            }
+        }
+        action.put(appName, archive);
+    }
+
+    /**
+     * @return The last archive deployed to the application by this build or the previous ones, or null
+     */
+    public static DeployedArchive lastDeployed(Run<?, ?> run, String appName) {
+        int lookback = 0;
+        for (Run<?, ?> r = run; r != null && lookback < MAX_LOOKBACK; r = r.getPreviousBuild(), lookback++) {
+            DeployedArchivesAction action = r.getAction(DeployedArchivesAction.class);
+            if (action != null) {
+                DeployedArchive archive = action.get(appName);
+                if (archive != null) {
+                    return archive;
+                }
+            }
+        }
+        return null;
+    }
+
+    public static class DeployedArchive implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        // SHA-256 of the reproducible tar.gz, null when the archive was not reproducible
+        private final String archiveHash;
+
+        // Content fingerprint of the archived files, null when it was not computed
+        private final String fingerprint;
+
+        // Id of the Tsuru deployment, null when it could not be retrieved
+        private final String deployId;
+
+        public DeployedArchive(String archiveHash, String fingerprint, String deployId) {
+            this.archiveHash = archiveHash;
+            this.fingerprint = fingerprint;
+            this.deployId = deployId;
+        }
+
+        public String getArchiveHash() {
+            return archiveHash;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public String getDeployId() {
+            return deployId;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the public static getters of a class over JMX, as read only attributes of
+ * {@code org.jenkinsci.plugins.tsuru:type=<class name>}: {@code getQueueDepth()} gives the
+ * {@code QueueDepth} attribute.
+ */
+final class StaticMetrics implements DynamicMBean {
+
+    private static final Logger LOGGER = Logger.getLogger(StaticMetrics.class.getName());
+
+    private final Class<?> type;
+
+    // By attribute name
+    private final Map<String, Method> getters = new TreeMap<>();
+
+    private StaticMetrics(Class<?> type) {
+        this.type = type;
+        for (Method method : type.getMethods()) {
+            String name = method.getName();
+            if (Modifier.isStatic(method.getModifiers()) && name.startsWith("get") && name.length() > 3
+                    && method.getParameterCount() == 0 && method.getReturnType() != void.class) {
+                getters.put(name.substring(3), method);
+            }
+        }
+    }
+
+    /**
+     * Registers the metrics of a class, failures are only logged as JMX is not essential
+     *
+     * @param type The class, its simple name being the type of the MBean
+     */
+    static void register(Class<?> type) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StaticMetrics(type),
+                    new ObjectName("org.jenkinsci.plugins.tsuru:type=" + type.getSimpleName()));
+        } catch (JMException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to register the Tsuru metrics of " + type.getSimpleName(), e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException {
+        Method getter = getters.get(attribute);
+        if (getter == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        try {
+            return getter.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new MBeanException(e);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (JMException e) {
+                // Left out, as the MBean server expects
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[getters.size()];
+        int i = 0;
+        for (Map.Entry<String, Method> getter : getters.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(getter.getKey(), getter.getValue().getReturnType().getName(),
+                    getter.getKey(), true, false, false);
+        }
+        return new MBeanInfo(type.getName(), "Tsuru metrics of " + type.getSimpleName(), attributes, null, null, null);
+    }
+}
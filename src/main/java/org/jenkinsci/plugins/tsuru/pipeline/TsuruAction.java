@@ -1,31 +1,57 @@
 package org.jenkinsci.plugins.tsuru.pipeline;
 
 import com.google.common.collect.ImmutableSet;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.model.Computer;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.Secret;
 import io.tsuru.client.ApiClient;
 import io.tsuru.client.ApiException;
 import io.tsuru.client.api.TsuruApi;
 import io.tsuru.client.auth.Authentication;
 import io.tsuru.client.model.Application;
 import io.tsuru.client.model.Deployments;
-import jenkins.security.MasterToSlaveCallable;
+import org.jenkinsci.plugins.tsuru.pipeline.DeployedArchivesAction.DeployedArchive;
+import org.jenkinsci.plugins.tsuru.utils.ArchiveCache;
+import org.jenkinsci.plugins.tsuru.utils.ArchiveOptions;
+import org.jenkinsci.plugins.tsuru.utils.DeployMetrics;
+import org.jenkinsci.plugins.tsuru.utils.DeployUploader;
+import org.jenkinsci.plugins.tsuru.utils.DeployWatcher;
+import org.jenkinsci.plugins.tsuru.utils.StepArgs;
 import org.jenkinsci.plugins.tsuru.utils.TarGzip;
+import org.jenkinsci.plugins.tsuru.utils.TsuruIgnore;
+import org.jenkinsci.plugins.tsuru.utils.TsuruOutputStream;
+import org.jenkinsci.plugins.tsuru.utils.UploadFailedException;
 import org.jenkinsci.plugins.workflow.cps.EnvActionImpl;
 import org.jenkinsci.plugins.workflow.steps.*;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.Serializable;
 import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 public class TsuruAction extends Step implements Serializable {
@@ -33,7 +59,7 @@ public class TsuruAction extends Step implements Serializable {
     private static final Logger LOGGER = Logger.getLogger("org.jenkinsci.plugins.tsuru");
 
     public enum Action {
-        DEPLOY, ROLLBACK, BUILD,
+        DEPLOY, DEPLOY_ALL, ROLLBACK, BUILD,
         APP_CREATE, APP_REMOVE, APP_CLONE,
         ENV_SET, ENV_GET, LOAD_ENVFILE
     }
@@ -58,6 +84,36 @@ public class TsuruAction extends Step implements Serializable {
         return new Execution(this, context);
     }
 
+    /**
+     * Receives on the controller the id of the Tsuru deployment an agent started, so a restarted
+     * controller can follow it
+     */
+    public interface DeployTracker {
+        void deployStarted(String deployId);
+    }
+
+    /**
+     * Deployment slots of a cluster, granted by the controller so the deployments of all the
+     * builds queue instead of colliding on Tsuru
+     */
+    public interface DeploySlots {
+        /**
+         * Waits for a slot to deploy the application
+         *
+         * @return The time waited in milliseconds
+         */
+        long acquire(String appName) throws InterruptedException;
+
+        void release(String appName);
+    }
+
+    /**
+     * Receives on the controller the measures of a deploy or build, to keep them with the build
+     */
+    public interface MetricsRecorder {
+        void record(DeployMetrics metrics);
+    }
+
     @Extension
     public static class DescriptorImpl extends StepDescriptor {
 
@@ -108,7 +164,8 @@ public class TsuruAction extends Step implements Serializable {
             this.step = step;
         }
 
-        private transient volatile ScheduledFuture<?> task;
+        // The action, queued on the shared step executor and interrupted when the step is stopped
+        private transient volatile CompletableFuture<Void> task;
 
         public Boolean getResult() {
             return result;
@@ -120,352 +177,862 @@ public class TsuruAction extends Step implements Serializable {
 
         private Boolean result = false;
 
+        // Success of each application of a fan-out deployment
+        private LinkedHashMap<String, Boolean> results;
+
+        public Map<String, Boolean> getResults() {
+            return results;
+        }
+
+        // Saved with the program: enough to follow the Tsuru deployment after a controller restart
+        private String appName;
+
+        private String basePath;
+
+        // Encrypted with the Jenkins secret key
+        private String authorization;
+
+        private String deployId;
+
         @Override
         public void stop(Throwable cause) throws Exception {
-            if (task != null) {
-                task.cancel(false);
+            CompletableFuture<Void> t = task;
+            if (t != null) {
+                // Interrupting a call to the agent cancels it there too
+                t.cancel(true);
             }
             getContext().onFailure(cause);
         }
 
         public boolean start() {
 
-            new Thread("tsuru") {
-                @Override
-                public void run() {
-                    try {
-                        tsuruPerform();
-                    } catch (Exception e) {
-                        Execution.this.getContext().onFailure(e);
-                    }
-                }
-            }.start();
+            submit(() -> {
+                tsuruPerform();
+                return null;
+            });
 
             return false;
         }
 
+        /**
+         * Reattaches to the Tsuru deployment running when the controller stopped. Any other action
+         * can't tell how far it went, so it fails rather than being run twice.
+         */
+        @Override
+        public void onResume() {
+            if (deployId == null) {
+                getContext().onFailure(new AbortException("Tsuru step interrupted by a Jenkins restart"));
+                return;
+            }
+
+            submit(() -> {
+                resumeDeploy();
+                return null;
+            });
+        }
+
+        private void submit(Callable<Void> work) {
+            task = TsuruStepExecutor.submit(work);
+            if (TsuruStepExecutor.isQueued(task)) {
+                try {
+                    getContext().get(TaskListener.class).getLogger().println("[tsuru] Waiting for a Tsuru step thread, "
+                            + TsuruStepExecutor.getQueueDepth() + " step(s) queued");
+                } catch (IOException | InterruptedException e) {
+                    // Only a log line
+                }
+            }
+            task.whenComplete((value, e) -> {
+                // Cancelled by stop(), which already reported it
+                if (e != null && !(e instanceof CancellationException)) {
+                    Execution.this.getContext().onFailure(e);
+                }
+            });
+        }
+
+        private void resumeDeploy() throws Exception {
+            TaskListener listener = getContext().get(TaskListener.class);
+            Secret secret = authorization == null ? null : Secret.decrypt(authorization);
+
+            listener.getLogger().println("[app-deploy] Jenkins restarted, following deployment " + deployId + " of " + appName);
+            listener.getLogger().println("[app-deploy] Deployment log, from the start:");
+            listener.getLogger().flush();
+            DeployWatcher watcher = new DeployWatcher(basePath, secret == null ? null : secret.getPlainText());
+            boolean succeeded = TsuruStepExecutor.blocking(() -> watcher.watch(deployId, 0, new TsuruOutputStream(listener.getLogger())));
+            listener.getLogger().println();
+            if (!succeeded) {
+                throw new ApiException("[app-deploy] Tsuru deployment FAILED ˆˆˆˆˆˆˆˆˆ");
+            }
+            listener.getLogger().println("[app-deploy] Finishing Tsuru application deployment =======>");
+            listener.getLogger().flush();
+            setResult(true);
+            getContext().onSuccess(this);
+        }
+
+        /**
+         * Saves the deployment id reported by the agent with the program
+         */
+        private class Tracker implements DeployTracker {
+
+            private boolean done;
+
+            @Override
+            public synchronized void deployStarted(String id) {
+                // A report arriving once the call returned would bring back a finished deployment
+                if (done || id.equals(deployId)) {
+                    return;
+                }
+                deployId = id;
+                getContext().saveState();
+            }
+
+            /**
+             * Ends the tracking once the agent returned: done with the deployment, or nothing to resume
+             */
+            synchronized void finish() {
+                done = true;
+                deployId = null;
+            }
+        }
+
+        /**
+         * @return The recorder keeping the measures of the agent with the build
+         */
+        private static MetricsRecorder recorder(Run<?, ?> run, FilePath workspace, Launcher launcher) {
+            Computer computer = workspace.toComputer();
+            String node = computer == null ? "" : computer.getDisplayName();
+            return launcher.getChannel().export(MetricsRecorder.class, metrics -> {
+                metrics.setNode(node);
+                DeployMetricsAction.record(run, metrics);
+            });
+        }
+
+        /**
+         * Runs the action on the agent. The step waits for it, deployments queued included,
+         * without holding one of the step threads.
+         */
+        private static <T> T callAgent(Launcher launcher, TsuruCallable<T> callable) throws Exception {
+            return TsuruStepExecutor.blocking(() -> launcher.getChannel().call(callable));
+        }
+
+        /**
+         * @return The deployment slots of the cluster of the step, closed once the agent returned
+         */
+        private DeployScheduler.Slots slots() {
+            return DeployScheduler.slots(step.apiInstance.getApiClient().getBasePath(), step.Args);
+        }
+
         private void tsuruPerform() throws Exception {
             FilePath workspace = getContext().get(FilePath.class);
             TaskListener listener = getContext().get(TaskListener.class);
             Launcher launcher = getContext().get(Launcher.class);
-            String output = "";
 
+            Run<?, ?> run = getContext().get(Run.class);
+
+            // Every action runs on the agent owning the workspace
             switch (step.action) {
                 case DEPLOY:
-                    class RunDeployOnNode extends MasterToSlaveCallable<Void, Exception> {
-                        private static final long serialVersionUID = 1L;
-                        private final TsuruAction step;
-
-                        private String basePath;
-
-                        private String authorization;
-
-                        public RunDeployOnNode(TsuruAction step) {
-                            this.step = step;
-
-                            this.basePath = step.apiInstance.getApiClient().getBasePath();
-                            this.authorization = step.apiInstance.getApiClient().getDefaultHeaders().get("Authorization");
-                        }
-
-                        @Override
-                        public Void call() throws Exception {
-                            this.step.apiInstance = new TsuruApi();
-                            this.step.apiInstance.getApiClient().setBasePath(basePath);
-                            this.step.apiInstance.getApiClient().addDefaultHeader("Authorization", this.authorization);
-
-                            File deploymentFile = null;
-
-                            if (this.step.Args.get("imageTag") == null || this.step.Args.get("imageTag").isEmpty()) {
-                                // Create temp deployment file
-
-                                deploymentFile = File.createTempFile("deploymentFile", ".tgz");
-                                deploymentFile.deleteOnExit();
-                                listener.getLogger().println("[app-deploy] Deploying file " + deploymentFile);
-                                listener.getLogger().println("[app-deploy] Directory: " + workspace);
-
-                                File fileDir = new File(workspace + "/");
-
-                                ArrayList<File> fileList;
-
-                                if (fileDir != null) {
-                                    fileList = new ArrayList<File>(fileDir.listFiles().length);
-                                } else {
-                                    throw new IOException("Failed to enumerate files from: " + workspace + "/");
-                                }
-
-                                File tsuruIgnore = new File(fileDir.getAbsolutePath() + File.separator + ".tsuruignore");
-                                List<String> ignoredFiles = new ArrayList<>();
-
-                                try {
-                                    if (tsuruIgnore.exists()) {
-                                        ignoredFiles = Files.readAllLines(tsuruIgnore.toPath());
-                                        listener.getLogger().println("[app-deploy] Ignoring files on deployment: " + ignoredFiles);
-                                    }
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-
-                                for (File childFile : fileDir.listFiles()) {
-                                    Boolean ignoreFile = false;
-                                    for (String k : ignoredFiles) {
-                                        if (k.equals(childFile.getName())) {
-                                            ignoreFile = true;
-                                            continue;
-                                        }
-                                    }
-                                    if (!ignoreFile)
-                                        fileList.add(childFile);
-                                }
-
-                                TarGzip.compressFiles(fileList, deploymentFile);
-                            }
-
-                            listener.getLogger().println("[app-deploy] Starting Tsuru application deployment ========>");
-                            listener.getLogger().flush();
-
-                            int timeout = this.step.apiInstance.getApiClient().getReadTimeout();
-                            this.step.apiInstance.getApiClient().setReadTimeout(600000); // Same BuildTimeout than TSURU
-                            String output = "";
-
-                            try {
-                                output = this.step.apiInstance.appDeploy(this.step.Args.get("appName"), deploymentFile, this.step.Args.get("imageTag"), this.step.Args.get("message"), this.step.Args.get("commit"));
-                            } catch (io.tsuru.client.ApiException e) {
-
-                                    if (e.getCause() instanceof java.io.IOException) {
-                                        int counter = 0;
-                                        String id = "";
-                                        listener.getLogger().println("[app-deploy] Logs will be truncated, please check the logs directly on Tsuru!");
-                                        do {
-                                            List<Deployments> deploys = step.apiInstance.appDeployList(step.Args.get("appName"), 1);
-                                            if (deploys == null) {
-                                                Thread.sleep(5000 + (counter * 500));
-                                                counter++;
-                                                continue;
-                                            }
-                                            if (deploys.size() > 0) {
-                                                Deployments deployment = deploys.get(0);
-                                                if (id.length() == 0) {
-                                                    id = deployment.getId();
-                                                } else if (!id.contains(deployment.getId())) {
-                                                    listener.getLogger().println("[app-deploy] Another deployment started in the meanwhile! Aborting this one!");
-                                                    break;
-                                                }
-                                                if (!deployment.getDuration().startsWith("-") && (deployment.getImage().length() != 0 || deployment.getError().length() != 0)) {
-                                                    output = step.apiInstance.appLog(step.Args.get("appName"), 20);
-                                                    if (deployment.getImage().length() != 0) {
-                                                        output += "\nOK\n";
-                                                    }
-                                                    break;
-                                                }
-                                            } else {
-                                                // No deployments at all
-                                                listener.getLogger().println("[app-deploy] No deployment was found!");
-                                                break;
-                                            }
-                                            Thread.sleep(5000 + (counter * 500));
-                                            counter++;
-                                        } while (counter < 80);
-                                    } else {
-                                        // TODO: Better handling on unauthorized and conflict (another deployment in course)
-                                        throw e;
-                                    }
-
-                            } finally {
-                                listener.getLogger().println(output);
-                                step.apiInstance.getApiClient().setReadTimeout(timeout);
-                            }
-
-                            if (!output.endsWith("OK\n")) {
-                                throw new ApiException("[app-deploy] Tsuru deployment FAILED ˆˆˆˆˆˆˆˆˆ");
-                            }
-                            listener.getLogger().println("[app-deploy] Finishing Tsuru application deployment =======>");
-                            listener.getLogger().flush();
-                            setResult(true);
-                            return null;
-                        }
+                    DeployedArchive lastDeployed = DeployedArchivesAction.lastDeployed(run, step.Args.get("appName"));
+                    if (lastDeployed != null) {
+                        step.Args.put("lastArchiveHash", lastDeployed.getArchiveHash());
+                        step.Args.put("lastFingerprint", lastDeployed.getFingerprint());
+                        step.Args.put("lastDeployId", lastDeployed.getDeployId());
                     }
-
-                    launcher.getChannel().call(new RunDeployOnNode(step));
-                    break;
-                case ROLLBACK:
-                    listener.getLogger().println("[app-deploy-rollback] Starting Tsuru application deployment rollback ========>");
-                    output = step.apiInstance.appDeployRollback(step.Args.get("appName"), step.Args.get("origin"), step.Args.get("imageTag"));
-                    listener.getLogger().println(output);
-                    if (!output.endsWith("OK\n")) {
-                        throw new ApiException("[app-deploy-rollback] Tsuru deployment rollback FAILED ˆˆˆˆˆˆˆˆˆ");
+                    appName = step.Args.get("appName");
+                    basePath = step.apiInstance.getApiClient().getBasePath();
+                    String auth = step.apiInstance.getApiClient().getDefaultHeaders().get("Authorization");
+                    authorization = auth == null ? null : Secret.fromString(auth).getEncryptedValue();
+                    Tracker tracking = new Tracker();
+                    DeployTracker tracker = launcher.getChannel().export(DeployTracker.class, tracking);
+                    DeployScheduler.Slots slots = slots();
+                    DeployedArchive deployed;
+                    try {
+                        deployed = callAgent(launcher, new RunDeployOnNode(step, workspace, listener, tracker,
+                                launcher.getChannel().export(DeploySlots.class, slots))
+                                .withRecorder(recorder(run, workspace, launcher)));
+                    } finally {
+                        tracking.finish();
+                        // Left by an agent that disconnected
+                        slots.close();
                     }
-
-                    listener.getLogger().println("[app-deploy-rollback] Finishing Tsuru application deployment rollback =======>");
-                    listener.getLogger().flush();
+                    if (deployed != null) {
+                        DeployedArchivesAction.record(run, step.Args.get("appName"), deployed);
+                    }
+                    // Failed deployments throw
                     setResult(true);
                     break;
+                case DEPLOY_ALL:
+                    DeployScheduler.Slots allSlots = slots();
+                    try {
+                        results = callAgent(launcher, new RunDeployAllOnNode(step, workspace, listener,
+                                launcher.getChannel().export(DeploySlots.class, allSlots))
+                                .withRecorder(recorder(run, workspace, launcher)));
+                    } finally {
+                        allSlots.close();
+                    }
+                    setResult(!results.containsValue(false));
+                    break;
+                case ROLLBACK:
+                    setResult(callAgent(launcher, new RunRollbackOnNode(step, workspace, listener)));
+                    break;
                 case BUILD:
+                    setResult(callAgent(launcher, new RunBuildOnNode(step, workspace, listener).withRecorder(recorder(run, workspace, launcher))));
+                    break;
+                case ENV_SET:
+                    setResult(callAgent(launcher, new RunEnvSetOnNode(step, workspace, listener)));
+                    break;
+                case ENV_GET:
+                    setResult(callAgent(launcher, new RunEnvGetOnNode(step, workspace, listener)));
+                    break;
+                case LOAD_ENVFILE:
+                    setResult(callAgent(launcher, new RunLoadEnvFileOnNode(step, workspace, listener)));
+                    break;
+                case APP_CREATE:
+                    setResult(callAgent(launcher, new RunAppCreateOnNode(step, workspace, listener)));
+                    break;
+                case APP_CLONE:
+                    setResult(callAgent(launcher, new RunAppCloneOnNode(step, workspace, listener)));
+                    break;
+                default:
+                    listener.getLogger().println("[tsuru] Jenkins plugin method not implemented.");
+            }
+
+            // Return results
+            getContext().onSuccess(this);
+        }
 
-                    class RunBuildOnNode extends MasterToSlaveCallable<Void, Exception> {
-                        private static final long serialVersionUID = 1L;
-                        private final TsuruAction step;
+    }
 
-                        private String basePath;
+    /**
+     * Deploys on the agent, uploading the archive and following the deployments
+     */
+    abstract static class DeployCallable<T> extends TsuruCallable<T> {
+        private static final long serialVersionUID = 1L;
 
-                        private String authorization;
+        // Wait for Tsuru to list the deployments being uploaded, idle threads are dropped
+        private static final ExecutorService TRACKERS = Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), "Tsuru deployment tracker"));
 
-                        public RunBuildOnNode(TsuruAction step) {
-                            this.step = step;
+        // Null when the deployments can't be resumed after a restart
+        private final DeployTracker tracker;
 
-                            this.basePath = step.apiInstance.getApiClient().getBasePath();
-                            this.authorization = step.apiInstance.getApiClient().getDefaultHeaders().get("Authorization");
-                        }
+        private final DeploySlots slots;
+
+        DeployCallable(TsuruAction step, FilePath workspace, TaskListener listener, DeployTracker tracker, DeploySlots slots) {
+            super(step.apiInstance, step.Args, workspace, listener);
+            this.tracker = tracker;
+            this.slots = slots;
+        }
+
+        /**
+         * Reports the deployment once Tsuru lists it, in the background while its output streams
+         *
+         * @return The tracking, to cancel once the deployment is over
+         */
+        private Future<?> trackDeploy(String appName, DeployWatcher watcher, String previousDeployId) {
+            return TRACKERS.submit(() -> {
+                try {
+                    String deployId = watcher.awaitDeploy(appName, previousDeployId);
+                    if (deployId != null && !Thread.currentThread().isInterrupted()) {
+                        tracker.deployStarted(deployId);
+                    }
+                } catch (InterruptedException e) {
+                    // Cancelled, the deployment is over
+                } catch (Exception e) {
+                    LOGGER.warning("Failed to track the deployment of " + appName + ": " + e);
+                }
+            });
+        }
+
+        /**
+         * @return The workspace files to archive, .tsuruignore rules being loaded in the options
+         */
+        protected ArrayList<File> workspaceFiles(ArchiveOptions archiveOptions) throws IOException {
+            File fileDir = new File(workspace + "/");
+            File[] files = fileDir.listFiles();
+            if (files == null) {
+                throw new IOException("Failed to enumerate files from: " + workspace + "/");
+            }
 
-                        @Override
-                        public Void call() throws Exception {
-                            this.step.apiInstance = new TsuruApi();
-                            this.step.apiInstance.getApiClient().setBasePath(basePath);
-                            this.step.apiInstance.getApiClient().addDefaultHeader("Authorization", this.authorization);
+            TsuruIgnore ignore;
+            try {
+                ignore = TsuruIgnore.load(fileDir);
+            } catch (IllegalArgumentException e) {
+                // Deploying the whole workspace instead could ship what the rules keep out
+                throw new AbortException("[app-deploy] " + e.getMessage());
+            }
+            if (!ignore.isEmpty()) {
+                listener.getLogger().println("[app-deploy] Ignoring files on deployment: " + ignore);
+            }
+            archiveOptions.setIgnore(ignore);
 
-                            // Create temp deployment file for building Image
-                            File deploymentFile = File.createTempFile("deploymentFile", ".tgz");
-                            deploymentFile.deleteOnExit();
-                            System.out.println("Building image from deployment file " + deploymentFile);
-                            System.out.println("Directory: " + workspace);
+            // .tsuruignore rules are applied while walking, pruning ignored directories
+            return new ArrayList<File>(Arrays.asList(files));
+        }
 
-                            TarGzip.compressFile(new File(workspace.getRemote()), deploymentFile);
+        /**
+         * Deploys to an application once the controller grants it a slot, and waits for the
+         * deployment to end, following it when the connection drops.
+         *
+         * @param appName The application
+         * @param archive Writes the archive, null to deploy the imageTag argument
+         * @param output Receives the Tsuru output
+         * @param logger Receives the step messages
+         * @param metrics Receives the queue wait, upload, server build and log tail durations
+         * @return true when the deployment succeeded
+         */
+        protected boolean upload(String appName, DeployUploader.ArchiveWriter archive, TsuruOutputStream output, PrintStream logger,
+                                 DeployMetrics metrics) throws ApiException, InterruptedException {
+            long waited = slots.acquire(appName);
+            metrics.setDuration(DeployMetrics.Phase.QUEUE, waited);
+            if (waited >= 1000) {
+                logger.println("[app-deploy] Waited " + (waited / 1000) + "s for other deployments of " + appName + " or its cluster");
+            }
+            try {
+                return uploadInSlot(appName, archive, output, logger, metrics);
+            } finally {
+                slots.release(appName);
+            }
+        }
 
-                            listener.getLogger().println("[app-build] Starting Tsuru application building ========>");
-                            String output = step.apiInstance.appBuild(step.Args.get("appName"), step.Args.get("imageTag"), deploymentFile);
-                            listener.getLogger().println(output);
-                            if (!output.endsWith("OK")) {
-                                throw new ApiException("[app-build] Tsuru building FAILED ˆˆˆˆˆˆˆˆˆ");
-                            }
+        private boolean uploadInSlot(String appName, DeployUploader.ArchiveWriter archive, TsuruOutputStream output, PrintStream logger,
+                                     DeployMetrics metrics) throws ApiException, InterruptedException {
+            // Tells our deployment apart from the previous one, if the connection drops
+            DeployWatcher watcher = new DeployWatcher(basePath, authorization);
+            String previousDeployId = null;
+            try {
+                previousDeployId = watcher.getLastDeployId(appName);
+            } catch (ApiException e) {
+                LOGGER.warning("Failed to retrieve the deployments of " + appName + ": " + e);
+            }
 
-                            listener.getLogger().println("[app-build] Finishing Tsuru application build =======>");
-                            listener.getLogger().println("[app-build] Image available under TAG: " + step.Args.get("imageTag"));
-                            listener.getLogger().flush();
-                            setResult(true);
-                            return null;
-                        }
+            AtomicReference<Future<?>> tracking = new AtomicReference<>();
+            try {
+                DeployUploader uploader = uploader(metrics, logger);
+                if (tracker != null) {
+                    final String previousId = previousDeployId;
+                    uploader.setOnUploaded(() -> tracking.set(trackDeploy(appName, watcher, previousId)));
+                }
+                if (archive != null) {
+                    uploader.deploy(appName, archive, args.get("message"), args.get("commit"), output);
+                } else {
+                    uploader.deployImage(appName, args.get("imageTag"), args.get("message"), args.get("commit"), output);
+                }
+                return output.isOk();
+            } catch (UploadFailedException e) {
+                // Tsuru never got the whole archive, there is no deployment to follow
+                logger.println();
+                logger.println("[app-deploy] Failed to upload the deployment to Tsuru (" + e.getCause() + ")");
+                throw e;
+            } catch (io.tsuru.client.ApiException e) {
+                if (!(e.getCause() instanceof java.io.IOException)) {
+                    // TODO: Better handling on unauthorized and conflict (another deployment in course)
+                    throw e;
+                }
+                logger.println();
+                logger.println("[app-deploy] Lost the connection to Tsuru (" + e.getCause() + "), following the deployment");
+                long start = System.nanoTime();
+                try {
+                    String deployId = watcher.awaitDeploy(appName, previousDeployId);
+                    if (deployId == null) {
+                        logger.println("[app-deploy] No deployment was found!");
+                        return false;
+                    }
+                    logger.println("[app-deploy] Following deployment " + deployId);
+                    if (tracker != null) {
+                        tracker.deployStarted(deployId);
                     }
+                    return watcher.watch(deployId, output.getCount(), output);
+                } finally {
+                    metrics.time(DeployMetrics.Phase.LOG_TAIL, start);
+                }
+            } finally {
+                Future<?> t = tracking.get();
+                if (t != null) {
+                    t.cancel(true);
+                }
+                logger.println();
+                logger.flush();
+            }
+        }
+    }
 
-                    launcher.getChannel().call(new RunBuildOnNode(step));
-                    break;
-                case ENV_SET:
-                    listener.getLogger().println("[env-set] Setting environment variable ========>");
-                    String[] kv = step.Args.get("env").split("=");
-                    String[] v = Arrays.copyOfRange(kv, 1, kv.length);
-                    String vJoined = String.join("=", v);
-
-                    io.tsuru.client.model.EnvVars envVar = new io.tsuru.client.model.EnvVars(kv[0], vJoined);
-                    String NoRestartString = step.Args.get("restartApp");
-                    Boolean NoRestart = Boolean.valueOf(NoRestartString);
-                    String IsPrivateString = step.Args.get("private");
-                    Boolean IsPrivate = Boolean.valueOf(IsPrivateString);
-                    output = step.apiInstance.envSet(step.Args.get("appName"), Arrays.asList(envVar), NoRestart, IsPrivate);
-                    listener.getLogger().println(output);
-
-                    listener.getLogger().println("[env-set] Environment variable setted =======>");
-                    listener.getLogger().flush();
-                    setResult(true);
-                    break;
-                case ENV_GET:
-                    listener.getLogger().println("[env-get] Getting environment variable ========>");
-                    io.tsuru.client.model.EnvVars[] getEnvVars = step.apiInstance.envGet(step.Args.get("appName"), step.Args.get("env"));
-                    String result = step.Args.get("result");
-                    for (io.tsuru.client.model.EnvVars e : getEnvVars) {
-                        String.format("%s%s=%s\n", result, e.getName(), e.getValue());
+    static class RunDeployOnNode extends DeployCallable<DeployedArchive> {
+        private static final long serialVersionUID = 1L;
+
+        RunDeployOnNode(TsuruAction step, FilePath workspace, TaskListener listener, DeployTracker tracker, DeploySlots slots) {
+            super(step, workspace, listener, tracker, slots);
+        }
+
+        /**
+         * @param lastArg The argument holding the value recorded for the last deployment made by Jenkins
+         * @param value The value (archive hash, fingerprint) of this deployment
+         * @return true when the value is the one of the last deployment made by Jenkins, and it is still the current one on Tsuru
+         */
+        private boolean isLastDeployed(String lastArg, String value) throws ApiException {
+            if (!value.equals(args.get(lastArg))) {
+                return false;
+            }
+            String lastDeployId = args.get("lastDeployId");
+            List<Deployments> deploys = api().appDeployList(args.get("appName"), 1);
+            if (lastDeployId == null || deploys == null || deploys.isEmpty() || !lastDeployId.equals(deploys.get(0).getId())) {
+                listener.getLogger().println("[app-deploy] Same content as the last deployment from Jenkins, but the application was deployed since");
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public DeployedArchive call() throws Exception {
+            DeployMetrics metrics = new DeployMetrics("deploy", args.get("appName"));
+            try {
+                DeployedArchive deployed = deploy(metrics);
+                metrics.setSucceeded(true);
+                return deployed;
+            } finally {
+                deleteStagedArchives();
+                report(metrics, listener.getLogger());
+            }
+        }
+
+        private DeployedArchive deploy(DeployMetrics metrics) throws Exception {
+            File deploymentFile = null;
+            ArrayList<File> fileList = null;
+            String archiveHash = null;
+            String fingerprint = null;
+            boolean streaming = Boolean.valueOf(args.get("streamingDeploy"));
+            final ArchiveOptions archiveOptions = archiveOptions();
+            archiveOptions.setMetrics(metrics);
+
+            if (args.get("imageTag") == null || args.get("imageTag").isEmpty()) {
+                if (streaming && archiveOptions.isReproducible()) {
+                    // The hash must be known before deciding to upload
+                    listener.getLogger().println("[app-deploy] Reproducible archive, staging it instead of streaming");
+                    streaming = false;
+                }
+                if (streaming) {
+                    listener.getLogger().println("[app-deploy] Streaming deployment archive");
+                } else {
+                    // Create temp deployment file
+                    deploymentFile = stageArchive();
+                    listener.getLogger().println("[app-deploy] Deploying file " + deploymentFile);
+                }
+                listener.getLogger().println("[app-deploy] Directory: " + workspace);
+                listener.getLogger().println("[app-deploy] Compression: " + archiveOptions.getCompression());
+
+                long start = System.nanoTime();
+                fileList = workspaceFiles(archiveOptions);
+                metrics.time(DeployMetrics.Phase.WALK, start);
+
+                if (Boolean.valueOf(args.get("skipUnchangedDeploy"))) {
+                    start = System.nanoTime();
+                    fingerprint = TarGzip.fingerprint(fileList, archiveOptions);
+                    metrics.time(DeployMetrics.Phase.WALK, start);
+                    listener.getLogger().println("[app-deploy] Workspace fingerprint: " + fingerprint + " (" + ((System.nanoTime() - start) / 1000000) + " ms)");
+
+                    if (isLastDeployed("lastFingerprint", fingerprint)) {
+                        listener.getLogger().println("[app-deploy] Workspace unchanged since the last deployment (" + args.get("lastDeployId") + "), skipping archive and upload");
+                        listener.getLogger().flush();
+                        return new DeployedArchive(args.get("lastArchiveHash"), fingerprint, args.get("lastDeployId"));
                     }
+                }
 
-                    listener.getLogger().println("[env-set] Environment variable got =======>");
-                    listener.getLogger().flush();
-                    setResult(true);
-                    break;
-                case LOAD_ENVFILE:
-                    listener.getLogger().println("[load-env-file] Loading environment file variables ========>");
-                    String envfile = step.Args.get("envfile");
-                    Properties props = new Properties();
-                    try (FileInputStream in = new FileInputStream(workspace.getRemote() + "/" + envfile)) {
-                        props.load(in);
+                start = System.nanoTime();
+                if (!streaming && archiveOptions.isReproducible()) {
+                    MessageDigest digest = ArchiveCache.newDigest();
+                    TarGzip.compressFiles(fileList, new DigestOutputStream(new FileOutputStream(deploymentFile), digest), archiveOptions);
+                    metrics.time(DeployMetrics.Phase.COMPRESSION, start);
+                    archiveHash = ArchiveCache.toHex(digest.digest());
+                    listener.getLogger().println("[app-deploy] Archive SHA-256: " + archiveHash);
+
+                    if (isLastDeployed("lastArchiveHash", archiveHash)) {
+                        listener.getLogger().println("[app-deploy] Archive unchanged since the last deployment (" + args.get("lastDeployId") + "), skipping upload");
+                        listener.getLogger().flush();
+                        return new DeployedArchive(archiveHash, fingerprint, args.get("lastDeployId"));
                     }
+                } else if (!streaming) {
+                    TarGzip.compressFiles(fileList, deploymentFile, archiveOptions);
+                    metrics.time(DeployMetrics.Phase.COMPRESSION, start);
+                }
+            }
 
-                    Enumeration<String> enums = (Enumeration<String>) props.propertyNames();
-                    List<io.tsuru.client.model.EnvVars> envVarsFromFile = new ArrayList<io.tsuru.client.model.EnvVars>();
+            listener.getLogger().println("[app-deploy] Starting Tsuru application deployment ========>");
+            listener.getLogger().flush();
+
+            // Tsuru output goes to the console as it arrives
+            TsuruOutputStream output = new TsuruOutputStream(listener.getLogger());
+            DeployUploader.ArchiveWriter archive = null;
+            if (streaming && fileList != null) {
+                final ArrayList<File> archivedFiles = fileList;
+                archive = out -> TarGzip.compressFiles(archivedFiles, out, archiveOptions);
+            } else if (deploymentFile != null) {
+                final File archiveFile = deploymentFile;
+                archive = out -> Files.copy(archiveFile.toPath(), out);
+            }
+            boolean succeeded = upload(args.get("appName"), archive, output, listener.getLogger(), metrics);
 
-                    while (enums.hasMoreElements()) {
-                        String key = enums.nextElement();
-                        String value = props.getProperty(key);
+            if (!succeeded) {
+                throw new ApiException("[app-deploy] Tsuru deployment FAILED ˆˆˆˆˆˆˆˆˆ");
+            }
+            listener.getLogger().println("[app-deploy] Finishing Tsuru application deployment =======>");
+            listener.getLogger().flush();
 
-                        envVarsFromFile.add(new io.tsuru.client.model.EnvVars(key, value));
-                    }
-                    output = step.apiInstance.envSet(step.Args.get("appName"), envVarsFromFile, true, false);
-                    listener.getLogger().println(output);
+            if (archiveHash == null && fingerprint == null) {
+                return null;
+            }
+            // Remember which deployment the archive made, so a later identical archive can be skipped
+            String deployId = null;
+            try {
+                deployId = new DeployWatcher(basePath, authorization).getLastDeployId(args.get("appName"));
+            } catch (ApiException e) {
+                LOGGER.warning("Failed to retrieve the deployment of " + args.get("appName") + ": " + e);
+            }
+            return new DeployedArchive(archiveHash, fingerprint, deployId);
+        }
+    }
 
-                    listener.getLogger().println("[load-env-file] Environment variables setted =======>");
-                    listener.getLogger().flush();
-                    setResult(true);
+    /**
+     * Deploys the workspace to several applications: the archive is made once, then uploaded to
+     * a bounded number of applications at a time. The output of each deployment is printed as a
+     * whole when it ends, so concurrent deployments don't mix on the console.
+     */
+    static class RunDeployAllOnNode extends DeployCallable<LinkedHashMap<String, Boolean>> {
+        private static final long serialVersionUID = 1L;
 
-                case APP_CREATE:
-                    listener.getLogger().println("[app-create] Creating application on Tsuru ========>");
-                    String[] routerOpts = step.Args.get("routerOpts").split(",");
-                    HashMap<String, String> routerOptsMap = new HashMap<>();
-                    for (String routerOpt : routerOpts) {
-                        kv = routerOpt.split("=");
-                        if (kv.length > 1) {
-                            routerOptsMap.put(kv[0], kv[1]);
-                        }
-                    }
-                    output = step.apiInstance.appCreate(step.Args.get("appName"), step.Args.get("platform"), step.Args.get("plan"), step.Args.get("teamOwner"), step.Args.get("pool"), step.Args.get("appDescription"), Arrays.asList(step.Args.get("tags").split(",")), step.Args.get("router"), routerOptsMap);
-                    listener.getLogger().println(output);
+        RunDeployAllOnNode(TsuruAction step, FilePath workspace, TaskListener listener, DeploySlots slots) {
+            // A single deployment id is saved with the program, these deployments are not resumed
+            super(step, workspace, listener, null, slots);
+        }
 
-                    listener.getLogger().println("[app-create] Application created =======>");
-                    listener.getLogger().flush();
-                    setResult(true);
-                    break;
-                case APP_CLONE:
-                    String newAppName = step.Args.get("newAppName").toLowerCase();
-                    try {
-                        listener.getLogger().println("[app-clone] Retrieving application on Tsuru ========>");
-                        Application originalApp = step.apiInstance.appInfo(step.Args.get("appName"));
-                        io.tsuru.client.model.EnvVars[] envVars = step.apiInstance.envGet(originalApp.getName(), null);
-
-                        listener.getLogger().println("[app-clone] Creating the cloned application on Tsuru ========>");
-                        String plan = originalApp.getPlan().getName().equals("autogenerated") ? null : originalApp.getPlan().getName();
-                        Map routerOptsMaps = originalApp.getRouters().get(0).getOpts();
-                        output = step.apiInstance.appCreate(newAppName, originalApp.getPlatform(), plan, originalApp.getTeamOwner(),
-                                originalApp.getPool(), originalApp.getDescription(), originalApp.getTag(), originalApp.getRouters().get(0).getName(), routerOptsMaps);
-                        listener.getLogger().println(output);
+        @Override
+        public LinkedHashMap<String, Boolean> call() throws Exception {
+            List<String> appNames = appNames();
+            LinkedHashMap<String, Boolean> results = new LinkedHashMap<>();
+            if (appNames.isEmpty()) {
+                return results;
+            }
+            int parallelism = Math.max(1, Math.min(StepArgs.getInt(args, "parallelism", 4), appNames.size()));
+
+            // The archive measures, copied to those of each application
+            DeployMetrics archiveMetrics = new DeployMetrics("deploy", null);
+            File deploymentFile = null;
+            ExecutorService pool = Executors.newFixedThreadPool(parallelism,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Tsuru deployAll"));
+            try {
+                DeployUploader.ArchiveWriter archive = null;
+                if (args.get("imageTag") == null || args.get("imageTag").isEmpty()) {
+                    ArchiveOptions archiveOptions = archiveOptions();
+                    archiveOptions.setMetrics(archiveMetrics);
+                    deploymentFile = stageArchive();
+                    listener.getLogger().println("[app-deploy-all] Deploying file " + deploymentFile);
+                    listener.getLogger().println("[app-deploy-all] Directory: " + workspace);
+                    listener.getLogger().println("[app-deploy-all] Compression: " + archiveOptions.getCompression());
+
+                    long start = System.nanoTime();
+                    ArrayList<File> fileList = workspaceFiles(archiveOptions);
+                    archiveMetrics.time(DeployMetrics.Phase.WALK, start);
+                    start = System.nanoTime();
+                    TarGzip.compressFiles(fileList, deploymentFile, archiveOptions);
+                    archiveMetrics.time(DeployMetrics.Phase.COMPRESSION, start);
+                    final File archiveFile = deploymentFile;
+                    archive = out -> Files.copy(archiveFile.toPath(), out);
+                } else {
+                    // Promoting a built image, nothing to upload
+                    listener.getLogger().println("[app-deploy-all] Image: " + args.get("imageTag"));
+                }
 
-                        for (io.tsuru.client.model.EnvVars e : envVars) {
-                            if (!e.getName().startsWith("TSURU_")) { // Do no update or add TSURU* related Environment variables
-                                output = step.apiInstance.envSet(newAppName, Arrays.asList(e), false, !e.getIsPublic());
-                                listener.getLogger().println(output);
-                            }
-                        }
-                    } catch (ApiException e) {
-                        listener.getLogger().println(e.toString() + ": " + e.getResponseBody());
-                        try {
-                            if (e.getCode() != 409) { // Ignore failing due to already existent application
-                                // Rollback the new app creation due to some failure.
-                                output = step.apiInstance.appRemove(newAppName);
-                                listener.getLogger().println(output);
-                            } else {
-                                setResult(true);
-                                break;
-                            }
-                        } catch (Exception ie) {
-                            listener.getLogger().println(ie.toString());
-                        }
-                        setResult(false);
-                        break;
+                listener.getLogger().println("[app-deploy-all] Starting Tsuru deployment of " + String.join(", ", appNames)
+                        + ", " + parallelism + " at a time ========>");
+                listener.getLogger().flush();
+
+                Map<String, Future<Boolean>> deploys = new LinkedHashMap<>();
+                for (String appName : appNames) {
+                    final DeployUploader.ArchiveWriter appArchive = archive;
+                    deploys.put(appName, pool.submit(() -> deploy(appName, appArchive, archiveMetrics.forApp(appName))));
+                }
+                for (Map.Entry<String, Future<Boolean>> deploy : deploys.entrySet()) {
+                    try {
+                        results.put(deploy.getKey(), deploy.getValue().get());
+                    } catch (ExecutionException e) {
+                        listener.getLogger().println("[app-deploy-all] " + deploy.getKey() + ": " + e.getCause());
+                        results.put(deploy.getKey(), false);
                     }
-                    listener.getLogger().println("[app-clone] Application cloned successfully =======>");
-                    listener.getLogger().flush();
-                    setResult(true);
-                    break;
-                default:
-                    listener.getLogger().println("[tsuru] Jenkins plugin method not implemented.");
+                }
+            } finally {
+                // Interrupts the deployments left when the step is aborted
+                pool.shutdownNow();
+                deleteStagedArchives();
             }
 
-            // Return results
-            getContext().onSuccess(this);
+            int failed = 0;
+            for (Map.Entry<String, Boolean> result : results.entrySet()) {
+                listener.getLogger().println("[app-deploy-all] " + result.getKey() + ": " + (result.getValue() ? "OK" : "FAILED"));
+                if (!result.getValue()) {
+                    failed++;
+                }
+            }
+            listener.getLogger().println("[app-deploy-all] Finishing Tsuru deployment of " + results.size()
+                    + " applications, " + failed + " failed =======>");
+            listener.getLogger().flush();
+            return results;
+        }
+
+        private boolean deploy(String appName, DeployUploader.ArchiveWriter archive, DeployMetrics metrics) throws Exception {
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            PrintStream logger = new PrintStream(log, true, "UTF-8");
+            boolean succeeded = false;
+            try {
+                succeeded = upload(appName, archive, new TsuruOutputStream(log), logger, metrics);
+            } catch (ApiException e) {
+                logger.println("[app-deploy-all] " + e + (e.getResponseBody() == null ? "" : ": " + e.getResponseBody()));
+            } finally {
+                metrics.setSucceeded(succeeded);
+                report(metrics, logger);
+                synchronized (this) {
+                    PrintStream console = listener.getLogger();
+                    console.println("[app-deploy-all] " + appName + (succeeded ? " deployed" : " deployment FAILED") + ":");
+                    log.writeTo(console);
+                    console.flush();
+                }
+            }
+            return succeeded;
+        }
+    }
+
+    static class RunBuildOnNode extends TsuruCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        RunBuildOnNode(TsuruAction step, FilePath workspace, TaskListener listener) {
+            super(step.apiInstance, step.Args, workspace, listener);
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            DeployMetrics metrics = new DeployMetrics("build", args.get("appName"));
+            try {
+                Boolean built = build(metrics);
+                metrics.setSucceeded(true);
+                return built;
+            } finally {
+                deleteStagedArchives();
+                report(metrics, listener.getLogger());
+            }
+        }
+
+        private Boolean build(DeployMetrics metrics) throws Exception {
+            // Create temp deployment file for building Image
+            File deploymentFile = stageArchive();
+            listener.getLogger().println("[app-build] Building image from deployment file " + deploymentFile);
+            listener.getLogger().println("[app-build] Directory: " + workspace);
+
+            // The walk is part of the compression here
+            ArchiveOptions archiveOptions = archiveOptions();
+            archiveOptions.setMetrics(metrics);
+            long start = System.nanoTime();
+            TarGzip.compressFile(new File(workspace.getRemote()), deploymentFile, archiveOptions);
+            metrics.time(DeployMetrics.Phase.COMPRESSION, start);
+
+            listener.getLogger().println("[app-build] Starting Tsuru application building ========>");
+            TsuruOutputStream output = new TsuruOutputStream(listener.getLogger());
+            try {
+                DeployUploader uploader = uploader(metrics, listener.getLogger());
+                uploader.build(args.get("appName"), args.get("imageTag"),
+                        out -> Files.copy(deploymentFile.toPath(), out), output);
+            } finally {
+                listener.getLogger().println();
+                listener.getLogger().flush();
+            }
+            if (!output.isOk()) {
+                throw new ApiException("[app-build] Tsuru building FAILED ˆˆˆˆˆˆˆˆˆ");
+            }
+
+            listener.getLogger().println("[app-build] Finishing Tsuru application build =======>");
+            listener.getLogger().println("[app-build] Image available under TAG: " + args.get("imageTag"));
+            listener.getLogger().flush();
+            return true;
+        }
+    }
+
+    static class RunRollbackOnNode extends TsuruCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        RunRollbackOnNode(TsuruAction step, FilePath workspace, TaskListener listener) {
+            super(step.apiInstance, step.Args, workspace, listener);
         }
 
+        @Override
+        public Boolean call() throws Exception {
+            listener.getLogger().println("[app-deploy-rollback] Starting Tsuru application deployment rollback ========>");
+            String output = api().appDeployRollback(args.get("appName"), args.get("origin"), args.get("imageTag"));
+            listener.getLogger().println(output);
+            if (!output.endsWith("OK\n")) {
+                throw new ApiException("[app-deploy-rollback] Tsuru deployment rollback FAILED ˆˆˆˆˆˆˆˆˆ");
+            }
+
+            listener.getLogger().println("[app-deploy-rollback] Finishing Tsuru application deployment rollback =======>");
+            listener.getLogger().flush();
+            return true;
+        }
+    }
+
+    static class RunEnvSetOnNode extends TsuruCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        RunEnvSetOnNode(TsuruAction step, FilePath workspace, TaskListener listener) {
+            super(step.apiInstance, step.Args, workspace, listener);
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            listener.getLogger().println("[env-set] Setting environment variable ========>");
+            String[] kv = args.get("env").split("=");
+            String[] v = Arrays.copyOfRange(kv, 1, kv.length);
+            String vJoined = String.join("=", v);
+
+            io.tsuru.client.model.EnvVars envVar = new io.tsuru.client.model.EnvVars(kv[0], vJoined);
+            String NoRestartString = args.get("restartApp");
+            Boolean NoRestart = Boolean.valueOf(NoRestartString);
+            String IsPrivateString = args.get("private");
+            Boolean IsPrivate = Boolean.valueOf(IsPrivateString);
+            String output = api().envSet(args.get("appName"), Arrays.asList(envVar), NoRestart, IsPrivate);
+            listener.getLogger().println(output);
+
+            listener.getLogger().println("[env-set] Environment variable setted =======>");
+            listener.getLogger().flush();
+            return true;
+        }
+    }
+
+    static class RunEnvGetOnNode extends TsuruCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        RunEnvGetOnNode(TsuruAction step, FilePath workspace, TaskListener listener) {
+            super(step.apiInstance, step.Args, workspace, listener);
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            listener.getLogger().println("[env-get] Getting environment variable ========>");
+            io.tsuru.client.model.EnvVars[] getEnvVars = api().envGet(args.get("appName"), args.get("env"));
+            String result = args.get("result");
+            for (io.tsuru.client.model.EnvVars e : getEnvVars) {
+                String.format("%s%s=%s\n", result, e.getName(), e.getValue());
+            }
+
+            listener.getLogger().println("[env-set] Environment variable got =======>");
+            listener.getLogger().flush();
+            return true;
+        }
+    }
+
+    static class RunLoadEnvFileOnNode extends TsuruCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        RunLoadEnvFileOnNode(TsuruAction step, FilePath workspace, TaskListener listener) {
+            super(step.apiInstance, step.Args, workspace, listener);
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            listener.getLogger().println("[load-env-file] Loading environment file variables ========>");
+            String envfile = args.get("envfile");
+            Properties props = new Properties();
+            // Local to this call, which runs next to the workspace
+            try (InputStream in = workspace.child(envfile).read()) {
+                props.load(in);
+            }
+
+            Enumeration<String> enums = (Enumeration<String>) props.propertyNames();
+            List<io.tsuru.client.model.EnvVars> envVarsFromFile = new ArrayList<io.tsuru.client.model.EnvVars>();
+
+            while (enums.hasMoreElements()) {
+                String key = enums.nextElement();
+                String value = props.getProperty(key);
+
+                envVarsFromFile.add(new io.tsuru.client.model.EnvVars(key, value));
+            }
+            String output = api().envSet(args.get("appName"), envVarsFromFile, true, false);
+            listener.getLogger().println(output);
+
+            listener.getLogger().println("[load-env-file] Environment variables setted =======>");
+            listener.getLogger().flush();
+            return true;
+        }
+    }
+
+    static class RunAppCreateOnNode extends TsuruCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        RunAppCreateOnNode(TsuruAction step, FilePath workspace, TaskListener listener) {
+            super(step.apiInstance, step.Args, workspace, listener);
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            listener.getLogger().println("[app-create] Creating application on Tsuru ========>");
+            String[] routerOpts = args.get("routerOpts").split(",");
+            HashMap<String, String> routerOptsMap = new HashMap<>();
+            for (String routerOpt : routerOpts) {
+                String[] kv = routerOpt.split("=");
+                if (kv.length > 1) {
+                    routerOptsMap.put(kv[0], kv[1]);
+                }
+            }
+            String output = api().appCreate(args.get("appName"), args.get("platform"), args.get("plan"), args.get("teamOwner"), args.get("pool"), args.get("appDescription"), Arrays.asList(args.get("tags").split(",")), args.get("router"), routerOptsMap);
+            listener.getLogger().println(output);
+
+            listener.getLogger().println("[app-create] Application created =======>");
+            listener.getLogger().flush();
+            return true;
+        }
+    }
+
+    static class RunAppCloneOnNode extends TsuruCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        RunAppCloneOnNode(TsuruAction step, FilePath workspace, TaskListener listener) {
+            super(step.apiInstance, step.Args, workspace, listener);
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            String newAppName = args.get("newAppName").toLowerCase();
+            String output;
+            try {
+                listener.getLogger().println("[app-clone] Retrieving application on Tsuru ========>");
+                Application originalApp = api().appInfo(args.get("appName"));
+                io.tsuru.client.model.EnvVars[] envVars = api().envGet(originalApp.getName(), null);
+
+                listener.getLogger().println("[app-clone] Creating the cloned application on Tsuru ========>");
+                String plan = originalApp.getPlan().getName().equals("autogenerated") ? null : originalApp.getPlan().getName();
+                Map routerOptsMaps = originalApp.getRouters().get(0).getOpts();
+                output = api().appCreate(newAppName, originalApp.getPlatform(), plan, originalApp.getTeamOwner(),
+                        originalApp.getPool(), originalApp.getDescription(), originalApp.getTag(), originalApp.getRouters().get(0).getName(), routerOptsMaps);
+                listener.getLogger().println(output);
+
+                for (io.tsuru.client.model.EnvVars e : envVars) {
+                    if (!e.getName().startsWith("TSURU_")) { // Do no update or add TSURU* related Environment variables
+                        output = api().envSet(newAppName, Arrays.asList(e), false, !e.getIsPublic());
+                        listener.getLogger().println(output);
+                    }
+                }
+            } catch (ApiException e) {
+                listener.getLogger().println(e.toString() + ": " + e.getResponseBody());
+                try {
+                    if (e.getCode() != 409) { // Ignore failing due to already existent application
+                        // Rollback the new app creation due to some failure.
+                        output = api().appRemove(newAppName);
+                        listener.getLogger().println(output);
+                    } else {
+                        return true;
+                    }
+                } catch (Exception ie) {
+                    listener.getLogger().println(ie.toString());
+                }
+                return false;
+            }
+            listener.getLogger().println("[app-clone] Application cloned successfully =======>");
+            listener.getLogger().flush();
+            return true;
+        }
     }
 }
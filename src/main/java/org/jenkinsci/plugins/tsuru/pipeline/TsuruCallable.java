@@ -0,0 +1,163 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import io.tsuru.client.api.TsuruApi;
+import jenkins.security.MasterToSlaveCallable;
+import org.jenkinsci.plugins.tsuru.utils.ArchiveCache;
+import org.jenkinsci.plugins.tsuru.utils.ArchiveOptions;
+import org.jenkinsci.plugins.tsuru.utils.DeployMetrics;
+import org.jenkinsci.plugins.tsuru.utils.DeployUploader;
+import org.jenkinsci.plugins.tsuru.utils.StepArgs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Work of a Tsuru step, run on the agent owning the workspace: the controller only ships the
+ * call, so neither its CPU nor its network is spent on Tsuru requests.
+ *
+ * The API client is not serializable, the call rebuilds it on the agent from the base path and
+ * the authorization of the controller one.
+ */
+abstract class TsuruCallable<T> extends MasterToSlaveCallable<T, Exception> {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final HashMap<String, String> args;
+
+    protected final FilePath workspace;
+
+    protected final TaskListener listener;
+
+    protected final String basePath;
+
+    protected final String authorization;
+
+    // Keeps the measures with the build, null when not kept
+    private TsuruAction.MetricsRecorder recorder;
+
+    private transient TsuruApi api;
+
+    // Archives staged on the agent disk by this call
+    private transient List<File> stagedArchives;
+
+    TsuruCallable(TsuruApi apiInstance, HashMap<String, String> args, FilePath workspace, TaskListener listener) {
+        this.args = args;
+        this.workspace = workspace;
+        this.listener = listener;
+        this.basePath = apiInstance.getApiClient().getBasePath();
+        this.authorization = apiInstance.getApiClient().getDefaultHeaders().get("Authorization");
+    }
+
+    TsuruCallable<T> withRecorder(TsuruAction.MetricsRecorder recorder) {
+        this.recorder = recorder;
+        return this;
+    }
+
+    /**
+     * Prints the measures of a deploy or build, and keeps them with the build
+     */
+    protected void report(DeployMetrics metrics, PrintStream logger) {
+        logger.println("[app-" + metrics.getAction() + "] " + metrics.getAppName() + " timings: " + metrics);
+        logger.flush();
+        if (recorder != null) {
+            recorder.record(metrics);
+        }
+    }
+
+    /**
+     * @return The Tsuru client of this call
+     */
+    protected TsuruApi api() {
+        if (api == null) {
+            // Shares the connections of the agent to the cluster
+            api = TsuruHttpClients.newApi(basePath, authorization, args);
+        }
+        return api;
+    }
+
+    /**
+     * @return A temporary file for an archive of the step, deleted by {@link #deleteStagedArchives()}
+     */
+    protected File stageArchive() throws IOException {
+        File file = File.createTempFile("deploymentFile", ".tgz");
+        file.deleteOnExit();
+        if (stagedArchives == null) {
+            stagedArchives = new ArrayList<>();
+        }
+        stagedArchives.add(file);
+        return file;
+    }
+
+    /**
+     * Deletes the archives staged by the call once it is done: they weigh hundreds of MB, and
+     * agents may run for months before deleteOnExit() would
+     */
+    protected void deleteStagedArchives() {
+        if (stagedArchives != null) {
+            for (File file : stagedArchives) {
+                file.delete();
+            }
+            stagedArchives = null;
+        }
+    }
+
+    /**
+     * Uploader of the step archives, retrying the uploads failing on the way as the cluster is
+     * configured to (3 times by default).
+     */
+    protected DeployUploader uploader(DeployMetrics metrics, PrintStream logger) {
+        DeployUploader uploader = new DeployUploader(basePath, authorization);
+        uploader.setMetrics(metrics);
+        uploader.setLog(logger);
+        uploader.setRetries(StepArgs.getInt(args, "uploadRetries", 3));
+        return uploader;
+    }
+
+    /**
+     * Archive options of the step, with the per application cache living next to the workspace
+     * (like the workspace@tmp directory) so it is never archived itself.
+     */
+    protected ArchiveOptions archiveOptions() {
+        ArchiveOptions options = ArchiveOptions.fromArgs(args);
+        if (Boolean.valueOf(args.get("incrementalArchive"))) {
+            options.setCacheDir(new File(workspace.getRemote() + "@tsuru-cache", cacheName()));
+        }
+        return options;
+    }
+
+    /**
+     * @return The applications of a fan-out deployment, in the order given
+     */
+    protected List<String> appNames() {
+        List<String> appNames = new ArrayList<>();
+        for (String appName : args.get("appNames").split(",")) {
+            if (!appName.trim().isEmpty()) {
+                appNames.add(appName.trim());
+            }
+        }
+        return appNames;
+    }
+
+    /**
+     * @return The name of the archive cache: the application, or for a fan-out deployment its set of applications
+     */
+    private String cacheName() {
+        String appName = args.get("appName");
+        if (appName != null) {
+            return appName;
+        }
+        List<String> appNames = new ArrayList<>(appNames());
+        Collections.sort(appNames);
+        // Hashed, a long list of names would not fit in a file name
+        byte[] hash = ArchiveCache.newDigest().digest(String.join(",", appNames).getBytes(StandardCharsets.UTF_8));
+        return "deployAll-" + ArchiveCache.toHex(hash).substring(0, 16);
+    }
+}
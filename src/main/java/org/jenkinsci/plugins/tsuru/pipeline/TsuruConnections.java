@@ -0,0 +1,208 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import io.tsuru.client.ApiException;
+import io.tsuru.client.api.TsuruApi;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Tsuru clients of the pipelines, shared by server and credential, so a pipeline no longer logs
+ * in on each stage and builds using other credentials never change its authorization.
+ *
+ * A login token is used for {@code tokenTtlMinutes} (60 by default), and renewed on the first use
+ * after three quarters of it: if Tsuru fails to log in then, the current token keeps being used
+ * until it expires. Clients unused for {@code idleMinutes} (30 by default) are dropped, and at
+ * most {@code maxConnections} (64 by default) are kept, the least recently used going first.
+ * These are system properties prefixed with {@code org.jenkinsci.plugins.tsuru.pipeline.TsuruConnections.}.
+ *
+ * A client is never changed once handed out, as other threads use it without locking: a renewed
+ * token comes with a new client, sharing the same HTTP client.
+ */
+public final class TsuruConnections {
+
+    private static final Logger LOGGER = Logger.getLogger(TsuruConnections.class.getName());
+
+    private static final String PROPERTIES = TsuruConnections.class.getName();
+
+    private static final TsuruConnections INSTANCE = new TsuruConnections(
+            TimeUnit.MINUTES.toMillis(Long.getLong(PROPERTIES + ".tokenTtlMinutes", 60)),
+            TimeUnit.MINUTES.toMillis(Long.getLong(PROPERTIES + ".idleMinutes", 30)),
+            Math.max(1, Integer.getInteger(PROPERTIES + ".maxConnections", 64)),
+            (api, email, password) -> api.login(email, password).getToken(),
+            System::currentTimeMillis);
+
+    /**
+     * Logs in to Tsuru
+     */
+    interface Login {
+        String login(TsuruApi api, String email, String password) throws ApiException;
+    }
+
+    private final long tokenTtl;
+
+    private final long idleTimeout;
+
+    private final int maxConnections;
+
+    private final Login login;
+
+    private final LongSupplier clock;
+
+    // In access order, the least recently used first
+    private final LinkedHashMap<String, Connection> connections = new LinkedHashMap<>(16, 0.75f, true);
+
+    TsuruConnections(long tokenTtl, long idleTimeout, int maxConnections, Login login, LongSupplier clock) {
+        this.tokenTtl = tokenTtl;
+        this.idleTimeout = idleTimeout;
+        this.maxConnections = maxConnections;
+        this.login = login;
+        this.clock = clock;
+    }
+
+    /**
+     * @param serverUrl The Tsuru API URL
+     * @param email The user logging in
+     * @param password Its password
+     * @param httpArgs The HTTP options of the cluster
+     * @return The client of the user, logged in
+     * @throws ApiException when Tsuru refuses the login, or fails while the token expired
+     */
+    public static TsuruApi connect(String serverUrl, String email, String password, Map<String, String> httpArgs) throws ApiException {
+        return INSTANCE.get(serverUrl, email, password, null, httpArgs);
+    }
+
+    /**
+     * @param serverUrl The Tsuru API URL
+     * @param token A Tsuru API token
+     * @param httpArgs The HTTP options of the cluster
+     * @return The client authorized by the token
+     */
+    public static TsuruApi connectWithToken(String serverUrl, String token, Map<String, String> httpArgs) {
+        try {
+            return INSTANCE.get(serverUrl, null, null, token, httpArgs);
+        } catch (ApiException e) {
+            // Tokens don't log in
+            throw new IllegalStateException(e);
+        }
+    }
+
+    TsuruApi get(String serverUrl, String email, String password, String token, Map<String, String> httpArgs) throws ApiException {
+        if (serverUrl.endsWith("/")) {
+            serverUrl = serverUrl.substring(0, serverUrl.length() - 1);
+        }
+        String key = email != null
+                ? serverUrl + "\n" + email + "\n" + hash(password)
+                : serverUrl + "\n\n" + hash(token);
+        long now = clock.getAsLong();
+        Connection connection;
+        synchronized (connections) {
+            evictIdle(now);
+            connection = connections.get(key);
+            if (connection == null) {
+                connection = new Connection(serverUrl, httpArgs, email, password);
+                if (email == null) {
+                    connection.authorize(token, now);
+                }
+                connections.put(key, connection);
+                if (connections.size() > maxConnections) {
+                    Iterator<Connection> eldest = connections.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+            connection.lastUsed = now;
+        }
+        // Outside of the cache lock, logins of other credentials don't wait for this one
+        return connection.use(now);
+    }
+
+    int size() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    private void evictIdle(long now) {
+        Iterator<Connection> it = connections.values().iterator();
+        while (it.hasNext() && now - it.next().lastUsed >= idleTimeout) {
+            it.remove();
+        }
+    }
+
+    private static String hash(String secret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(String.valueOf(secret).getBytes(StandardCharsets.UTF_8));
+            StringBuilder s = new StringBuilder();
+            for (byte b : bytes) {
+                s.append(String.format("%02x", b));
+            }
+            return s.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A client and its token
+     */
+    private final class Connection {
+
+        private final String serverUrl;
+
+        private final Map<String, String> httpArgs;
+
+        // Null when authorized by a token
+        private final String email;
+
+        private final String password;
+
+        // Client of the current token, replaced as a whole when it is renewed
+        private volatile TsuruApi api;
+
+        private long authorizedAt;
+
+        // Guarded by the cache lock
+        private long lastUsed;
+
+        Connection(String serverUrl, Map<String, String> httpArgs, String email, String password) {
+            this.serverUrl = serverUrl;
+            this.httpArgs = httpArgs == null ? null : new HashMap<>(httpArgs);
+            this.email = email;
+            this.password = password;
+        }
+
+        synchronized void authorize(String token, long now) {
+            api = TsuruHttpClients.newApi(serverUrl, "bearer " + token, httpArgs);
+            authorizedAt = now;
+        }
+
+        synchronized TsuruApi use(long now) throws ApiException {
+            if (email == null) {
+                return api;
+            }
+            long age = now - authorizedAt;
+            if (api == null || age >= tokenTtl * 3 / 4) {
+                try {
+                    // Logs in without a token, through a client of its own
+                    authorize(login.login(TsuruHttpClients.newApi(serverUrl, null, httpArgs), email, password), now);
+                } catch (ApiException e) {
+                    if (api == null || age >= tokenTtl) {
+                        throw e;
+                    }
+                    LOGGER.warning("Failed to renew the Tsuru token of " + email + ", still using the current one: " + e);
+                }
+            }
+            return api;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import io.tsuru.client.api.TsuruApi;
+import org.jenkinsci.plugins.tsuru.utils.StepArgs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP clients of the Tsuru API, one per cluster in each JVM (controller or agent): the steps
+ * share its connection pool and reuse warm connections, instead of each opening its own.
+ *
+ * A client is configured once from the options of the cluster, and replaced when they change: it
+ * is never changed while in use. HTTP/2 is only used when the JVM can negotiate it (ALPN), Tsuru
+ * is spoken in HTTP/1.1 otherwise.
+ */
+public final class TsuruHttpClients {
+
+    private static final Map<String, Pooled> CLIENTS = new ConcurrentHashMap<>();
+
+    private TsuruHttpClients() {
+    }
+
+    /**
+     * @param basePath The Tsuru API URL
+     * @param authorization The Authorization header of the requests
+     * @param args The step arguments, holding the HTTP options of the cluster
+     * @return A Tsuru client using the HTTP client of the cluster
+     */
+    public static TsuruApi newApi(String basePath, String authorization, Map<String, String> args) {
+        TsuruApi api = new TsuruApi();
+        api.getApiClient().setHttpClient(get(basePath, args));
+        api.getApiClient().setBasePath(basePath);
+        if (authorization != null) {
+            api.getApiClient().addDefaultHeader("Authorization", authorization);
+        }
+        return api;
+    }
+
+    /**
+     * @return The HTTP client of the cluster, with its options
+     */
+    static OkHttpClient get(String basePath, Map<String, String> args) {
+        Options options = new Options(args == null ? Collections.<String, String>emptyMap() : args);
+        return CLIENTS.compute(basePath, (k, pooled) ->
+                pooled != null && pooled.options.equals(options) ? pooled : new Pooled(options)).client;
+    }
+
+    /**
+     * HTTP options of a cluster, defaulting to those of OkHttp
+     */
+    static final class Options {
+
+        final int maxIdleConnections;
+
+        final int keepAliveSeconds;
+
+        final int connectTimeoutSeconds;
+
+        final int readTimeoutSeconds;
+
+        final boolean disableHttp2;
+
+        Options(Map<String, String> args) {
+            maxIdleConnections = StepArgs.getInt(args, "httpMaxIdleConnections", 5);
+            keepAliveSeconds = StepArgs.getInt(args, "httpKeepAlive", 300);
+            connectTimeoutSeconds = StepArgs.getInt(args, "httpConnectTimeout", 10);
+            readTimeoutSeconds = StepArgs.getInt(args, "httpReadTimeout", 10);
+            disableHttp2 = Boolean.valueOf(args.get("disableHttp2"));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Options)) {
+                return false;
+            }
+            Options other = (Options) o;
+            return maxIdleConnections == other.maxIdleConnections && keepAliveSeconds == other.keepAliveSeconds
+                    && connectTimeoutSeconds == other.connectTimeoutSeconds && readTimeoutSeconds == other.readTimeoutSeconds
+                    && disableHttp2 == other.disableHttp2;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{maxIdleConnections, keepAliveSeconds, connectTimeoutSeconds, readTimeoutSeconds, disableHttp2});
+        }
+    }
+
+    private static final class Pooled {
+
+        private final Options options;
+
+        private final OkHttpClient client = new OkHttpClient();
+
+        Pooled(Options options) {
+            this.options = options;
+            client.setConnectionPool(new ConnectionPool(options.maxIdleConnections, TimeUnit.SECONDS.toMillis(options.keepAliveSeconds)));
+            client.setConnectTimeout(options.connectTimeoutSeconds, TimeUnit.SECONDS);
+            client.setReadTimeout(options.readTimeoutSeconds, TimeUnit.SECONDS);
+            if (options.disableHttp2) {
+                client.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
+            } else {
+                client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+            }
+        }
+    }
+}
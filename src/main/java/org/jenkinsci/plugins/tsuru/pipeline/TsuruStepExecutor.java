@@ -0,0 +1,184 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared, bounded pool running the Tsuru steps of all the builds.
+ *
+ * The pool caps the steps working on the controller, steps beyond the cap wait in the queue.
+ * A step waiting for its agent or for Tsuru, e.g. while its deployment is queued, runs
+ * {@link #blocking(Callable)}: the pool grows by a thread meanwhile, so waiting steps never
+ * starve the others. The pool size is set with the
+ * {@code org.jenkinsci.plugins.tsuru.pipeline.TsuruStepExecutor.threads} system property.
+ * Queue depth, active and blocked steps are published over JMX as
+ * {@code org.jenkinsci.plugins.tsuru:type=TsuruStepExecutor}.
+ */
+public final class TsuruStepExecutor {
+
+    static final int THREADS = Math.max(1, Integer.getInteger(TsuruStepExecutor.class.getName() + ".threads", 20));
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), new NamingThreadFactory(new DaemonThreadFactory(), "TsuruStepExecutor"));
+
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    // Guarded by EXECUTOR
+    private static int blocked = 0;
+
+    private static final AtomicLong COMPLETED = new AtomicLong();
+
+    static {
+        // No idle threads when no pipeline uses Tsuru
+        EXECUTOR.allowCoreThreadTimeOut(true);
+        StaticMetrics.register(TsuruStepExecutor.class);
+    }
+
+    private TsuruStepExecutor() {
+    }
+
+    /**
+     * Queues the work of a step
+     *
+     * @param work The step work
+     * @return The future of the work, cancelling it with interruption interrupts the work if it already started
+     */
+    public static <T> CompletableFuture<T> submit(Callable<T> work) {
+        Task<T> task = new Task<>(work);
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Runs a call waiting for an agent or a remote server, without counting the thread against the pool size
+     *
+     * @param call The call, run on the current thread
+     * @return The result of the call
+     */
+    public static <T> T blocking(Callable<T> call) throws Exception {
+        resize(1);
+        try {
+            return call.call();
+        } finally {
+            resize(-1);
+        }
+    }
+
+    /**
+     * @param task A future returned by {@link #submit(Callable)}
+     * @return Whether the task still waits for a thread
+     */
+    public static boolean isQueued(Future<?> task) {
+        return EXECUTOR.getQueue().contains(task);
+    }
+
+    private static void resize(int delta) {
+        synchronized (EXECUTOR) {
+            blocked += delta;
+            int size = THREADS + blocked;
+            // The maximum can't go under the core size: raised first, lowered last
+            if (delta > 0) {
+                EXECUTOR.setMaximumPoolSize(size);
+                EXECUTOR.setCorePoolSize(size);
+            } else {
+                EXECUTOR.setCorePoolSize(size);
+                EXECUTOR.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    /**
+     * @return The number of steps waiting for a thread
+     */
+    public static int getQueueDepth() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    /**
+     * @return The number of steps running
+     */
+    public static int getActiveSteps() {
+        return ACTIVE.get();
+    }
+
+    /**
+     * @return The number of running steps waiting for their agent or a remote server
+     */
+    public static int getBlockedSteps() {
+        synchronized (EXECUTOR) {
+            return blocked;
+        }
+    }
+
+    /**
+     * @return The number of steps done since startup, successful or not
+     */
+    public static long getCompletedSteps() {
+        return COMPLETED.get();
+    }
+
+    /**
+     * @return The size of the pool, blocked steps aside
+     */
+    public static int getMaxThreads() {
+        return THREADS;
+    }
+
+    /**
+     * Future of a step work, which interrupts the thread running the work when cancelled
+     */
+    private static final class Task<T> extends CompletableFuture<T> implements Runnable {
+
+        private final Callable<T> work;
+
+        // Guarded by this, so a late cancellation never interrupts the next task of the thread
+        private Thread runner;
+
+        Task(Callable<T> work) {
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (isDone()) {
+                    // Cancelled while queued
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            ACTIVE.incrementAndGet();
+            try {
+                complete(work.call());
+            } catch (Throwable t) {
+                completeExceptionally(t);
+            } finally {
+                ACTIVE.decrementAndGet();
+                COMPLETED.incrementAndGet();
+                synchronized (this) {
+                    runner = null;
+                }
+                // Clears an interruption that came after the work ended
+                Thread.interrupted();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                EXECUTOR.remove(this);
+                synchronized (this) {
+                    if (mayInterruptIfRunning && runner != null) {
+                        runner.interrupt();
+                    }
+                }
+            }
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link GZIPOutputStream} exposing the level of its deflater.
+ */
+public class AdjustableGZIPOutputStream extends GZIPOutputStream implements LevelAdjustable {
+
+    private int level;
+
+    public AdjustableGZIPOutputStream(OutputStream out, int size, int level) throws IOException {
+        super(out, size);
+        this.level = level;
+        def.setLevel(level);
+    }
+
+    @Override
+    public void setLevel(int level) {
+        if (this.level != level) {
+            // Applied by the deflater on the next call, with the pending input flushed at the old level
+            def.setLevel(level);
+            this.level = level;
+        }
+    }
+
+    @Override
+    public void abort() {
+        def.end();
+    }
+
+    /**
+     * Writes the trailer of the gzip member and frees the deflater, leaving the underlying stream open.
+     * {@link #finish()} alone keeps the native memory of the deflater until it is garbage collected.
+     */
+    public void finishMember() throws IOException {
+        try {
+            finish();
+        } finally {
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Agent side cache of the compressed content of the archived files.
+ *
+ * Each file content is kept as a standalone gzip member, named after the SHA-256 of the content
+ * and the deflate level. An index maps the file stat (path, size and mtime) to the content hash,
+ * so unchanged files are neither read nor compressed again, and files only touched (e.g. by a
+ * fresh checkout) are hashed but not compressed again.
+ *
+ * The cache keeps only what the last archive used: members not referenced are deleted on {@link #save()}.
+ * Archives built on the same cache, e.g. by parallel deployments of an app, take turns: see {@link #lock(File)}.
+ */
+public class ArchiveCache implements Closeable {
+
+    private static final String INDEX = "index.properties";
+
+    private static final String LOCK = "index.lock";
+
+    // File locks are held by the whole JVM, the runs of this agent also take turns on a per directory permit
+    private static final Map<String, Semaphore> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private final File dir;
+
+    private final File membersDir;
+
+    // stat key -> content hash, as loaded from the previous run
+    private final Properties index = new Properties();
+
+    // stat key -> content hash, of the files archived in this run
+    private final Properties used = new Properties();
+
+    private final Set<String> usedMembers = new HashSet<>();
+
+    private int hits = 0;
+
+    private int misses = 0;
+
+    // Start of the run, members written since then may belong to another run
+    private final long startTime;
+
+    private Semaphore localLock = null;
+
+    private FileChannel lockChannel = null;
+
+    /**
+     * Opens the cache to read it only, e.g. to look up content hashes.
+     */
+    public ArchiveCache(File dir) throws IOException {
+        this(dir, false);
+    }
+
+    /**
+     * Opens the cache to build an archive, waiting for the other archives built on it to be done.
+     * The cache is held until {@link #close()}.
+     */
+    public static ArchiveCache lock(File dir) throws IOException {
+        return new ArchiveCache(dir, true);
+    }
+
+    private ArchiveCache(File dir, boolean exclusive) throws IOException {
+        this.dir = dir;
+        this.membersDir = new File(dir, "members");
+        Files.createDirectories(membersDir.toPath());
+        if (exclusive) {
+            acquire();
+        }
+        this.startTime = System.currentTimeMillis();
+
+        File indexFile = new File(dir, INDEX);
+        if (indexFile.isFile()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(indexFile))) {
+                index.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                // A corrupt index only costs a cold cache
+                index.clear();
+            }
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @param path The entry name
+     * @param size The file size
+     * @param mtime The file modification time, in ms
+     * @return The key identifying a file version without reading it
+     */
+    public static String statKey(String path, long size, long mtime) {
+        return path + "|" + size + "|" + mtime;
+    }
+
+    /**
+     * @return The content hash recorded for the given stat key on the previous run, or null
+     */
+    public String getContentHash(String statKey) {
+        return index.getProperty(statKey);
+    }
+
+    /**
+     * Looks up a compressed member, recording it as used by this run when found.
+     *
+     * @return The member file, or null when it is not cached
+     */
+    public File getMember(String statKey, String contentHash, int level) {
+        File member = memberFile(contentHash, level);
+        if (!member.isFile()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        record(statKey, contentHash, member);
+        return member;
+    }
+
+    /**
+     * @return A temporary file to compress a new member into, to be passed to {@link #putMember}
+     */
+    public File newTempMember() throws IOException {
+        return File.createTempFile("member", ".tmp", membersDir);
+    }
+
+    /**
+     * Moves a freshly compressed member into the cache.
+     *
+     * @return The cached member file
+     */
+    public File putMember(String statKey, String contentHash, int level, File tempMember) throws IOException {
+        File member = memberFile(contentHash, level);
+        Files.move(tempMember.toPath(), member.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        record(statKey, contentHash, member);
+        return member;
+    }
+
+    /**
+     * Persists the index of this run and drops the members it did not use.
+     */
+    public void save() throws IOException {
+        File indexFile = new File(dir, INDEX);
+        File tmp = new File(dir, INDEX + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            used.store(out, "Tsuru deployment archive cache");
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        File[] members = membersDir.listFiles();
+        if (members != null) {
+            for (File member : members) {
+                // Members being compressed or just cached by a run not holding the lock are left alone
+                if (!usedMembers.contains(member.getName()) && !member.getName().endsWith(".tmp")
+                        && member.lastModified() < startTime) {
+                    Files.deleteIfExists(member.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the cache to the next archive, if it was opened with {@link #lock(File)}
+     */
+    @Override
+    public void close() throws IOException {
+        if (localLock == null) {
+            return;
+        }
+        try {
+            // Releases the file lock as well
+            lockChannel.close();
+        } finally {
+            lockChannel = null;
+            localLock.release();
+            localLock = null;
+        }
+    }
+
+    private void acquire() throws IOException {
+        File lockFile = new File(dir, LOCK);
+        Semaphore local = LOCAL_LOCKS.computeIfAbsent(lockFile.getCanonicalPath(), k -> new Semaphore(1));
+        try {
+            local.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the archive cache " + dir);
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // Other agent processes sharing the workspace
+            channel.lock();
+            lockChannel = channel;
+            localLock = local;
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                IOUtils.closeQuietly(channel);
+            }
+            local.release();
+            throw e;
+        }
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    private void record(String statKey, String contentHash, File member) {
+        used.setProperty(statKey, contentHash);
+        usedMembers.add(member.getName());
+    }
+
+    private File memberFile(String contentHash, int level) {
+        return new File(membersDir, contentHash + "." + (level < 0 ? "d" : String.valueOf(level)) + ".gz");
+    }
+
+    /**
+     * @return The hex SHA-256 of the file content
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        FileTransfer.copy(file, file.length(), new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, digest));
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
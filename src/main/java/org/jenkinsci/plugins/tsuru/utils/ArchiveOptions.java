@@ -0,0 +1,115 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Tuning of the deployment archive generated by {@link TarGzip}.
+ */
+public class ArchiveOptions implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    // Number of gzip workers, 1 keeps the plain single threaded GZIPOutputStream
+    private int threads = 1;
+
+    // Size of the blocks compressed in parallel, in bytes
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private CompressionStrategy compression = CompressionStrategy.defaultStrategy();
+
+    // Directory of the ArchiveCache, null to always compress everything
+    private File cacheDir = null;
+
+    // Paths excluded from the archive
+    private TsuruIgnore ignore = TsuruIgnore.empty();
+
+    // Sorted entries with normalized times and owners, the same files always give the same bytes
+    private boolean reproducible = false;
+
+    // Receives the files and sizes archived, null when not measured
+    private DeployMetrics metrics = null;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public CompressionStrategy getCompression() {
+        return compression;
+    }
+
+    public void setCompression(CompressionStrategy compression) {
+        this.compression = compression;
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public TsuruIgnore getIgnore() {
+        return ignore;
+    }
+
+    public void setIgnore(TsuruIgnore ignore) {
+        this.ignore = ignore;
+    }
+
+    public boolean isReproducible() {
+        return reproducible;
+    }
+
+    public void setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+    }
+
+    public DeployMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(DeployMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Builds the options from the TsuruAction arguments, missing or invalid values keep the defaults.
+     * An invalid compression strategy is reported, silently compressing differently would be surprising.
+     *
+     * @param args The action arguments
+     * @return The archive options
+     */
+    public static ArchiveOptions fromArgs(Map<String, String> args) {
+        ArchiveOptions options = new ArchiveOptions();
+        int threads = StepArgs.getInt(args, "compressionThreads", options.threads);
+        if (threads <= 0) {
+            // 0 means one worker per core
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        options.setThreads(threads);
+        int blockSizeKb = StepArgs.getInt(args, "compressionBlockSize", 0);
+        if (blockSizeKb >= 32) {
+            options.setBlockSize(blockSizeKb * 1024);
+        }
+        options.setCompression(CompressionStrategy.parse(args.get("compression")));
+        options.setReproducible(Boolean.valueOf(args.get("reproducibleArchive")));
+        return options;
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of same size byte arrays, so archiving thousands of files does not allocate
+ * a fresh copy buffer (or compression block) for each of them.
+ */
+public class BufferPool {
+
+    // Shared by the file transfers of all the archives created on this JVM
+    public static final BufferPool TRANSFER = new BufferPool(256 * 1024, 32);
+
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    /**
+     * @param bufferSize The size of the buffers
+     * @param maxPooled The maximum number of idle buffers kept
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return An idle buffer, or a new one. Its content is undefined.
+     */
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back, it must not be used by the caller anymore.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
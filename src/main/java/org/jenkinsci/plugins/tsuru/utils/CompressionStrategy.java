@@ -0,0 +1,119 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses the deflate level used for the deployment archive.
+ *
+ * Supported specifications:
+ * <ul>
+ * <li>{@code default} - zlib default level
+ * <li>{@code 0} to {@code 9} - a fixed level, {@code 0} being the same as {@code store}
+ * <li>{@code store} - no compression at all, only gzip framing
+ * <li>{@code auto} or {@code auto:<level>} - the given level (default otherwise), but files
+ * which are already compressed (jars, images, archives...) are stored
+ * </ul>
+ */
+public class CompressionStrategy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Switching level costs a flush of the deflate stream, not worth it for small files
+    static final long MIN_STORED_SIZE = 64 * 1024;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jar", "war", "ear", "apk", "whl", "egg", "nupkg",
+            "zip", "gz", "tgz", "bz2", "tbz2", "xz", "txz", "lz", "lzma", "lz4", "zst", "7z", "rar", "br",
+            "png", "jpg", "jpeg", "gif", "webp", "avif", "heic", "ico",
+            "mp3", "mp4", "m4a", "m4v", "mov", "avi", "mkv", "webm", "ogg", "flac",
+            "woff", "woff2", "pdf", "docx", "xlsx", "pptx", "odt"));
+
+    private final int level;
+
+    private final boolean skipCompressed;
+
+    public CompressionStrategy(int level, boolean skipCompressed) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+        this.skipCompressed = skipCompressed;
+    }
+
+    public static CompressionStrategy defaultStrategy() {
+        return new CompressionStrategy(Deflater.DEFAULT_COMPRESSION, false);
+    }
+
+    /**
+     * Parses a strategy specification, see the class documentation for the syntax.
+     *
+     * @param spec The specification, null or empty for the default
+     * @return The strategy
+     * @throws IllegalArgumentException if the specification is not valid
+     */
+    public static CompressionStrategy parse(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return defaultStrategy();
+        }
+        String s = spec.trim().toLowerCase(Locale.ENGLISH);
+        boolean auto = false;
+        if (s.equals("auto")) {
+            return new CompressionStrategy(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        if (s.startsWith("auto:")) {
+            auto = true;
+            s = s.substring("auto:".length());
+        }
+        switch (s) {
+            case "default":
+                return new CompressionStrategy(Deflater.DEFAULT_COMPRESSION, auto);
+            case "store":
+                return new CompressionStrategy(Deflater.NO_COMPRESSION, auto);
+            default:
+                try {
+                    return new CompressionStrategy(Integer.parseInt(s), auto);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid compression strategy: " + spec);
+                }
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isSkipCompressed() {
+        return skipCompressed;
+    }
+
+    /**
+     * @param name The file name
+     * @param size The file size
+     * @return The deflate level to use for the file content
+     */
+    public int levelFor(String name, long size) {
+        if (skipCompressed && size >= MIN_STORED_SIZE && isCompressed(name)) {
+            return Deflater.NO_COMPRESSION;
+        }
+        return level;
+    }
+
+    static boolean isCompressed(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1) {
+            return false;
+        }
+        return COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    @Override
+    public String toString() {
+        String l = level == Deflater.DEFAULT_COMPRESSION ? "default" : level == Deflater.NO_COMPRESSION ? "store" : String.valueOf(level);
+        return skipCompressed ? "auto:" + l : l;
+    }
+}
@@ -0,0 +1,227 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where the time of a deploy or build went, and how big its archive was. Measured on the agent,
+ * printed to the console and kept with the build, to spot slow agents and bloated workspaces.
+ *
+ * Streaming deployments compress the archive while uploading it: the compression time is then
+ * part of the upload one.
+ */
+public class DeployMetrics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    public enum Phase {
+        WALK("workspace walk"),
+        COMPRESSION("compression"),
+        QUEUE("queue wait"),
+        UPLOAD("upload"),
+        BUILD("server build"),
+        LOG_TAIL("log tail");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final String action;
+
+    private final String appName;
+
+    private String node;
+
+    // In milliseconds
+    private final EnumMap<Phase, Long> durations = new EnumMap<>(Phase.class);
+
+    private long files = 0;
+
+    // Size of the archived files, before compression
+    private long bytes = 0;
+
+    private long compressedBytes = 0;
+
+    // Request body, archive included
+    private long uploadedBytes = 0;
+
+    private boolean succeeded = false;
+
+    /**
+     * @param action The operation measured, "deploy" or "build"
+     * @param appName The application
+     */
+    public DeployMetrics(String action, String appName) {
+        this.action = action;
+        this.appName = appName;
+    }
+
+    /**
+     * @return Measures of the same archive deployed to another application, without the upload and later phases
+     */
+    public synchronized DeployMetrics forApp(String appName) {
+        DeployMetrics metrics = new DeployMetrics(action, appName);
+        for (Phase phase : new Phase[]{Phase.WALK, Phase.COMPRESSION}) {
+            if (durations.containsKey(phase)) {
+                metrics.durations.put(phase, durations.get(phase));
+            }
+        }
+        metrics.files = files;
+        metrics.bytes = bytes;
+        metrics.compressedBytes = compressedBytes;
+        return metrics;
+    }
+
+    /**
+     * Adds the time elapsed since startNanos, a {@link System#nanoTime()}, to the phase
+     */
+    public synchronized void time(Phase phase, long startNanos) {
+        long millis = (System.nanoTime() - startNanos) / 1000000;
+        Long previous = durations.get(phase);
+        durations.put(phase, previous == null ? millis : previous + millis);
+    }
+
+    /**
+     * Sets the duration of the phase, measured elsewhere
+     */
+    public synchronized void setDuration(Phase phase, long millis) {
+        durations.put(phase, millis);
+    }
+
+    synchronized void addFile(long size) {
+        files++;
+        bytes += size;
+    }
+
+    synchronized void setCompressedBytes(long compressedBytes) {
+        this.compressedBytes = compressedBytes;
+    }
+
+    synchronized void setUploadedBytes(long uploadedBytes) {
+        this.uploadedBytes = uploadedBytes;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public String getAppName() {
+        return appName;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public void setNode(String node) {
+        this.node = node;
+    }
+
+    public synchronized boolean isSucceeded() {
+        return succeeded;
+    }
+
+    public synchronized void setSucceeded(boolean succeeded) {
+        this.succeeded = succeeded;
+    }
+
+    /**
+     * @return The duration of the phase in milliseconds, -1 when it did not happen
+     */
+    public synchronized long getDuration(Phase phase) {
+        Long millis = durations.get(phase);
+        return millis == null ? -1 : millis;
+    }
+
+    /**
+     * @return The duration of each phase that happened, formatted, in order
+     */
+    public synchronized Map<String, String> getPhases() {
+        Map<String, String> phases = new LinkedHashMap<>();
+        for (Map.Entry<Phase, Long> duration : durations.entrySet()) {
+            phases.put(duration.getKey().getDisplayName(), seconds(duration.getValue()));
+        }
+        return phases;
+    }
+
+    public synchronized long getFiles() {
+        return files;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public synchronized long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    /**
+     * @return The upload throughput in MB/s, 0 when nothing was uploaded
+     */
+    public synchronized double getUploadRate() {
+        Long millis = durations.get(Phase.UPLOAD);
+        if (millis == null || millis == 0 || uploadedBytes == 0) {
+            return 0;
+        }
+        return uploadedBytes / MEGABYTE / (millis / 1000.0);
+    }
+
+    /**
+     * @return The upload summary: size and throughput
+     */
+    public synchronized String getUploadSummary() {
+        if (uploadedBytes == 0) {
+            return "";
+        }
+        return String.format(Locale.ROOT, "%.1f MB at %.1f MB/s", uploadedBytes / MEGABYTE, getUploadRate());
+    }
+
+    /**
+     * @return The archive summary: files, size before and after compression
+     */
+    public synchronized String getArchiveSummary() {
+        if (files == 0) {
+            return "";
+        }
+        return String.format(Locale.ROOT, "%d files, %.1f MB -> %.1f MB", files, bytes / MEGABYTE, compressedBytes / MEGABYTE);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<String, String> phase : getPhases().entrySet()) {
+            if (s.length() > 0) {
+                s.append(", ");
+            }
+            s.append(phase.getKey()).append(' ').append(phase.getValue());
+            if (phase.getKey().equals(Phase.UPLOAD.getDisplayName()) && uploadedBytes > 0) {
+                s.append(" (").append(getUploadSummary()).append(')');
+            }
+        }
+        if (files > 0) {
+            s.append(" | ").append(getArchiveSummary());
+        }
+        return s.toString();
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.2fs", millis / 1000.0);
+    }
+}
@@ -0,0 +1,375 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import io.tsuru.client.ApiException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Multipart uploader for the Tsuru deploy and build endpoints.
+ *
+ * Unlike {@link io.tsuru.client.api.TsuruApi#appDeploy} it does not need the archive
+ * on disk: the body is produced by an {@link ArchiveWriter} straight into a chunked
+ * HTTP request, so compression and upload overlap and nothing is staged in /tmp.
+ * The output of the operation is forwarded as Tsuru sends it, instead of being
+ * returned as a whole once it is done.
+ *
+ * Tsuru can't resume an upload, but it only starts working once it received the whole
+ * request: a request whose connection fails while it is sent is retried from the start, with
+ * an exponential backoff. Failures once it was sent are not, Tsuru may be deploying, nor are
+ * those of the archive writer, which would fail again. A request that was never sent whole ends
+ * with an {@link UploadFailedException}.
+ */
+public class DeployUploader {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Writes the deployment archive into the request body.
+     */
+    public interface ArchiveWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final String basePath;
+
+    private final String authorization;
+
+    private int connectTimeout = 10000;
+
+    private int readTimeout = 600000; // Same BuildTimeout than TSURU
+
+    // Called once the request is sent, while Tsuru works on it
+    private Runnable onUploaded = null;
+
+    // Receives the upload and server side durations, null when not measured
+    private DeployMetrics metrics = null;
+
+    // Attempts after a failed upload
+    private int retries = 0;
+
+    private long retryDelay = 2000;
+
+    private long maxRetryDelay = 30000;
+
+    // Receives the retry messages, null to retry silently
+    private PrintStream log = null;
+
+    public DeployUploader(String basePath, String authorization) {
+        this.basePath = basePath;
+        this.authorization = authorization;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setOnUploaded(Runnable onUploaded) {
+        this.onUploaded = onUploaded;
+    }
+
+    public void setMetrics(DeployMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public void setMaxRetryDelay(long maxRetryDelay) {
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Deploy an archive to the application, streaming it while it is being generated.
+     *
+     * @param appName The application name
+     * @param archive Producer of the tar.gz content
+     * @param message Deployment message (optional)
+     * @param commit Commit hash (optional)
+     * @param output Receives the deployment output while Tsuru sends it
+     * @throws UploadFailedException when the request could not be sent whole
+     * @throws ApiException on HTTP errors, or wrapping the IOException when the connection fails once the request was sent
+     * @throws InterruptedException when aborted while waiting to retry
+     */
+    public void deploy(String appName, ArchiveWriter archive, String message, String commit, OutputStream output)
+            throws ApiException, InterruptedException
+    {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("message", message);
+        fields.put("commit", commit);
+        post("/apps/" + encode(appName) + "/deploy", fields, archive, output);
+    }
+
+    /**
+     * Deploy an image already built to the application.
+     *
+     * @param appName The application name
+     * @param image The image to deploy
+     * @param message Deployment message (optional)
+     * @param commit Commit hash (optional)
+     * @param output Receives the deployment output while Tsuru sends it
+     * @throws UploadFailedException when the request could not be sent whole
+     * @throws ApiException on HTTP errors, or wrapping the IOException when the connection fails once the request was sent
+     * @throws InterruptedException when aborted while waiting to retry
+     */
+    public void deployImage(String appName, String image, String message, String commit, OutputStream output)
+            throws ApiException, InterruptedException
+    {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("image", image);
+        fields.put("message", message);
+        fields.put("commit", commit);
+        post("/apps/" + encode(appName) + "/deploy", fields, null, output);
+    }
+
+    /**
+     * Build an image of the application from an archive, without deploying it.
+     *
+     * @param appName The application name
+     * @param tag The tag of the built image
+     * @param archive Producer of the tar.gz content
+     * @param output Receives the build output while Tsuru sends it
+     * @throws UploadFailedException when the request could not be sent whole
+     * @throws ApiException on HTTP errors, or wrapping the IOException when the connection fails once the request was sent
+     * @throws InterruptedException when aborted while waiting to retry
+     */
+    public void build(String appName, String tag, ArchiveWriter archive, OutputStream output)
+            throws ApiException, InterruptedException
+    {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("tag", tag);
+        post("/apps/" + encode(appName) + "/build", fields, archive, output);
+    }
+
+    private void post(String path, Map<String, String> fields, ArchiveWriter archive, OutputStream output)
+            throws ApiException, InterruptedException
+    {
+        long delay = retryDelay;
+        for (int attempt = 1; ; attempt++) {
+            IOException failure = send(path, fields, archive, output);
+            if (failure == null) {
+                return;
+            }
+            if (attempt > retries) {
+                throw new UploadFailedException(failure);
+            }
+            long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            if (log != null) {
+                log.println("[tsuru] Upload failed (" + failure + "), retrying in " + (jittered / 1000) + "s (" + attempt + "/" + retries + ")");
+                log.flush();
+            }
+            Thread.sleep(jittered);
+            delay = Math.min(delay * 2, maxRetryDelay);
+        }
+    }
+
+    /**
+     * Sends the request once
+     *
+     * @return The failure of the connection when the request could not be sent, and can be sent again
+     * @throws UploadFailedException when the archive writer failed
+     * @throws ApiException on HTTP errors, or wrapping the IOException when the connection failed after the request was sent
+     */
+    private IOException send(String path, Map<String, String> fields, ArchiveWriter archive, OutputStream output)
+            throws ApiException
+    {
+        String boundary = "----tsuru" + UUID.randomUUID().toString().replace("-", "");
+        HttpURLConnection connection = null;
+        long start = System.nanoTime();
+        Transport transport = null;
+        CountingOutputStream counter = null;
+        boolean sent = false;
+        try {
+            connection = open(path);
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+
+            transport = new Transport(connection.getOutputStream());
+            counter = new CountingOutputStream(transport);
+            try (OutputStream body = new BufferedOutputStream(counter, CHUNK_SIZE)) {
+                for (Map.Entry<String, String> field : fields.entrySet()) {
+                    writeField(body, boundary, field.getKey(), field.getValue());
+                }
+                if (archive != null) {
+                    writePartHeader(body, boundary,
+                            "Content-Disposition: form-data; name=\"file\"; filename=\"archive.tar.gz\"",
+                            "Content-Type: application/x-gzip");
+                    // Archive writers close their streams when done, keep the request body open.
+                    archive.writeTo(new CloseShieldOutputStream(body));
+                    write(body, CRLF);
+                }
+                write(body, "--" + boundary + "--" + CRLF);
+            }
+            sent = true;
+            if (metrics != null) {
+                metrics.time(DeployMetrics.Phase.UPLOAD, start);
+                metrics.setUploadedBytes(counter.getByteCount());
+                start = System.nanoTime();
+            }
+            if (onUploaded != null) {
+                onUploaded.run();
+            }
+
+            readResponse(connection, output);
+            return null;
+        } catch (IOException e) {
+            if (sent) {
+                throw new ApiException(e);
+            }
+            if (transport == null || transport.failed) {
+                return e;
+            }
+            // Reading the workspace, not the connection
+            throw new UploadFailedException(e);
+        } finally {
+            if (metrics != null && sent) {
+                metrics.time(DeployMetrics.Phase.BUILD, start);
+            } else if (metrics != null) {
+                // Failed while uploading
+                metrics.time(DeployMetrics.Phase.UPLOAD, start);
+                metrics.setUploadedBytes(counter == null ? 0 : counter.getByteCount());
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(basePath + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        return connection;
+    }
+
+    private static void readResponse(HttpURLConnection connection, OutputStream output) throws IOException, ApiException {
+        int code = connection.getResponseCode();
+        if (code < 200 || code >= 300) {
+            InputStream error = connection.getErrorStream();
+            String body = error == null ? "" : IOUtils.toString(error, StandardCharsets.UTF_8);
+            throw new ApiException(code, connection.getResponseMessage(), connection.getHeaderFields(), body);
+        }
+        // Forwarded chunk by chunk, Tsuru sends the output while the operation goes on
+        byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+        try (InputStream in = connection.getInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+                output.flush();
+            }
+        }
+    }
+
+    private static String encode(String value) throws ApiException {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new ApiException(e);
+        }
+    }
+
+    private static void writeField(OutputStream body, String boundary, String name, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        writePartHeader(body, boundary, "Content-Disposition: form-data; name=\"" + name + "\"");
+        write(body, value + CRLF);
+    }
+
+    private static void writePartHeader(OutputStream body, String boundary, String... headers) throws IOException {
+        StringBuilder sb = new StringBuilder("--").append(boundary).append(CRLF);
+        for (String header : headers) {
+            sb.append(header).append(CRLF);
+        }
+        write(body, sb.append(CRLF).toString());
+    }
+
+    private static void write(OutputStream body, String s) throws IOException {
+        body.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Request body remembering a failure of the connection, which archive writers may wrap or
+     * report from another thread
+     */
+    private static final class Transport extends FilterOutputStream {
+
+        private volatile boolean failed = false;
+
+        Transport(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+}
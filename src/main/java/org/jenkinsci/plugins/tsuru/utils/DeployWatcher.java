@@ -0,0 +1,231 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import io.tsuru.client.ApiException;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Follows a Tsuru deployment when the connection of the deploy request dropped.
+ *
+ * The deployment is polled with an exponential backoff and jitter, going back to the initial
+ * delay whenever its log grows, until it succeeds or fails. Its log is forwarded from where the
+ * deploy output stopped. Polling stops when the thread is interrupted, e.g. when the step is aborted.
+ */
+public class DeployWatcher {
+
+    private final String basePath;
+
+    private final String authorization;
+
+    private long initialDelay = 1000;
+
+    private long maxDelay = 30000;
+
+    // Wait for a deployment to show up after the upload
+    private long startTimeout = 60000;
+
+    // Wait for the deployment to end, Tsuru builds time out after 10 minutes
+    private long timeout = 30 * 60000;
+
+    private int requestTimeout = 30000;
+
+    public DeployWatcher(String basePath, String authorization) {
+        this.basePath = basePath;
+        this.authorization = authorization;
+    }
+
+    public void setInitialDelay(long initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public void setStartTimeout(long startTimeout) {
+        this.startTimeout = startTimeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setRequestTimeout(int requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * @param appName The application name
+     * @return The id of the last deployment of the application, or null if it was never deployed
+     * @throws ApiException on HTTP errors, or wrapping the IOException when the connection fails
+     */
+    public String getLastDeployId(String appName) throws ApiException {
+        try {
+            JsonElement deploys = get("/deploys?app=" + URLEncoder.encode(appName, "UTF-8") + "&limit=1");
+            if (deploys == null || !deploys.isJsonArray() || ((JsonArray) deploys).size() == 0) {
+                return null;
+            }
+            return string(((JsonArray) deploys).get(0).getAsJsonObject(), "ID");
+        } catch (UnsupportedEncodingException e) {
+            throw new ApiException(e);
+        }
+    }
+
+    /**
+     * Waits for a new deployment of the application, the one started by a request whose connection dropped.
+     *
+     * @param appName The application name
+     * @param previousDeployId The last deployment before the request, null if there was none
+     * @return The id of the new deployment, or null when none showed up in time: the upload never reached Tsuru
+     * @throws ApiException on HTTP errors other than connection failures
+     * @throws InterruptedException when aborted
+     */
+    public String awaitDeploy(String appName, String previousDeployId) throws ApiException, InterruptedException {
+        long deadline = System.currentTimeMillis() + startTimeout;
+        long delay = initialDelay;
+        while (true) {
+            try {
+                String deployId = getLastDeployId(appName);
+                if (deployId != null && !deployId.equals(previousDeployId)) {
+                    return deployId;
+                }
+            } catch (ApiException e) {
+                if (!(e.getCause() instanceof IOException)) {
+                    throw e;
+                }
+            }
+            if (System.currentTimeMillis() + delay > deadline) {
+                return null;
+            }
+            delay = sleep(delay);
+        }
+    }
+
+    /**
+     * Follows the deployment until it ends.
+     *
+     * @param deployId The deployment id
+     * @param seenBytes The bytes of the deployment log already forwarded
+     * @param output Receives the rest of the deployment log
+     * @return true when the deployment succeeded, false when it failed
+     * @throws ApiException on HTTP errors other than connection failures, or when the deployment did not end in time
+     * @throws InterruptedException when aborted
+     */
+    public boolean watch(String deployId, long seenBytes, OutputStream output) throws ApiException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long delay = initialDelay;
+        while (true) {
+            JsonObject deploy = null;
+            try {
+                JsonElement element = get("/deploys/" + URLEncoder.encode(deployId, "UTF-8"));
+                if (element != null && element.isJsonObject()) {
+                    deploy = element.getAsJsonObject();
+                }
+            } catch (ApiException e) {
+                if (!(e.getCause() instanceof IOException)) {
+                    throw e;
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new ApiException(e);
+            }
+
+            if (deploy != null) {
+                byte[] log = string(deploy, "Log").getBytes(StandardCharsets.UTF_8);
+                if (log.length > seenBytes) {
+                    try {
+                        output.write(log, (int) seenBytes, (int) (log.length - seenBytes));
+                        output.flush();
+                    } catch (IOException e) {
+                        throw new ApiException(e);
+                    }
+                    seenBytes = log.length;
+                    // Still going on, check again soon
+                    delay = initialDelay;
+                }
+                String error = string(deploy, "Error");
+                boolean running = string(deploy, "Duration").startsWith("-");
+                if (!running && !error.isEmpty()) {
+                    return false;
+                }
+                if (!running && !string(deploy, "Image").isEmpty()) {
+                    return true;
+                }
+            }
+
+            if (System.currentTimeMillis() + delay > deadline) {
+                throw new ApiException("Deployment " + deployId + " did not end in " + (timeout / 1000) + "s");
+            }
+            delay = sleep(delay);
+        }
+    }
+
+    /**
+     * Sleeps for the delay with a jitter of up to 50%, so builds polling the same Tsuru spread out
+     *
+     * @return The next delay
+     */
+    private long sleep(long delay) throws InterruptedException {
+        long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        Thread.sleep(jittered);
+        return Math.min(delay * 2, maxDelay);
+    }
+
+    private JsonElement get(String path) throws ApiException {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(basePath + path).openConnection();
+            connection.setConnectTimeout(requestTimeout);
+            connection.setReadTimeout(requestTimeout);
+            if (authorization != null) {
+                connection.setRequestProperty("Authorization", authorization);
+            }
+            connection.setRequestProperty("Accept", "application/json");
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NO_CONTENT) {
+                return null;
+            }
+            if (code < 200 || code >= 300) {
+                String body = "";
+                try (InputStream error = connection.getErrorStream()) {
+                    if (error != null) {
+                        body = IOUtils.toString(error, StandardCharsets.UTF_8);
+                    }
+                }
+                throw new ApiException(code, connection.getResponseMessage(), connection.getHeaderFields(), body);
+            }
+            // Read to the end and closed, not disconnected: the next poll reuses the connection
+            try (InputStream in = connection.getInputStream()) {
+                return new JsonParser().parse(IOUtils.toString(in, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            throw new ApiException(e);
+        } catch (JsonParseException e) {
+            throw new ApiException("Unexpected response from " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static String string(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        if (element == null || element.isJsonNull()) {
+            return "";
+        }
+        return element.getAsString();
+    }
+}
@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copies file content into the archive streams.
+ *
+ * The deflater only takes heap arrays on Java 8, so one copy is unavoidable: reads go straight
+ * from the channel into a pooled buffer, without the BufferedInputStream layer and without the
+ * per call native buffer of FileInputStream. Files are not memory mapped: the copy would be the
+ * same, and a mapping pins address space, locks the file on Windows and crashes the reader
+ * (SIGBUS) when the file is truncated meanwhile.
+ */
+final class FileTransfer {
+
+    private FileTransfer() {
+    }
+
+    /**
+     * @param file The file to copy
+     * @param size The number of bytes to copy, the size recorded in the tar header
+     * @param out The destination
+     * @throws IOException when the file can't be read or is shorter than expected
+     */
+    static void copy(File file, long size, OutputStream out) throws IOException {
+        byte[] buffer = BufferPool.TRANSFER.acquire();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            copyRead(channel, size, out, buffer);
+        } finally {
+            BufferPool.TRANSFER.release(buffer);
+        }
+    }
+
+    private static void copyRead(FileChannel channel, long size, OutputStream out, byte[] buffer) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long remaining = size;
+        while (remaining > 0) {
+            bb.clear();
+            bb.limit((int) Math.min(buffer.length, remaining));
+            int n = channel.read(bb);
+            if (n < 0) {
+                throw new EOFException("File shrunk while archiving, " + remaining + " bytes missing");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+}
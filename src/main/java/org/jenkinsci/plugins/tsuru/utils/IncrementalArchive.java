@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * tar.gz archive made of concatenated gzip members, which gzip readers (including Tsuru's)
+ * decode as a single stream.
+ *
+ * Tar headers are compressed on the fly, while the content of every file is its own gzip
+ * member taken from the {@link ArchiveCache}. Only new or modified files are compressed,
+ * the others are spliced into the output as they are.
+ *
+ * The archive holds the cache, opened with {@link ArchiveCache#lock(File)}, until it is closed or aborted.
+ */
+class IncrementalArchive implements TarGzip.ArchiveSink {
+
+    private static final int RECORD_SIZE = 512;
+
+    private final OutputStream out;
+
+    private final ArchiveCache cache;
+
+    private final ArchiveOptions options;
+
+    private final ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream(RECORD_SIZE * 3);
+
+    // Member receiving the tar headers until the next cached content
+    private AdjustableGZIPOutputStream headers = null;
+
+    // Workers of the parallel compression, shared by the big files of the archive
+    private ExecutorService workers = null;
+
+    IncrementalArchive(OutputStream out, ArchiveCache cache, ArchiveOptions options) {
+        this.out = out;
+        this.cache = cache;
+        this.options = options;
+    }
+
+    @Override
+    public void putEntry(TarArchiveEntry entry, File content) throws IOException {
+        // The cache is keyed by the real mtime, even when the archive drops it
+        long mtime = entry.getModTime().getTime();
+        if (options.isReproducible()) {
+            TarGzip.normalize(entry);
+        }
+        headers().write(header(entry));
+        if (content == null || entry.getSize() == 0) {
+            return;
+        }
+        finishHeaders();
+
+        String statKey = ArchiveCache.statKey(entry.getName(), entry.getSize(), mtime);
+        int level = options.getCompression().levelFor(entry.getName(), entry.getSize());
+
+        // Unchanged stat: trust the hash of the previous run. Otherwise hashing is still way cheaper than deflating
+        String contentHash = cache.getContentHash(statKey);
+        if (contentHash == null) {
+            contentHash = ArchiveCache.sha256(content);
+        }
+        File member = cache.getMember(statKey, contentHash, level);
+        if (member == null) {
+            member = compress(statKey, entry, content, level);
+        }
+        Files.copy(member.toPath(), out);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // End of archive: two zero records
+        headers().write(new byte[RECORD_SIZE * 2]);
+        try {
+            finishHeaders();
+            out.close();
+            cache.save();
+        } finally {
+            shutdownWorkers();
+            cache.close();
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (headers != null) {
+            headers.abort();
+            headers = null;
+        }
+        shutdownWorkers();
+        // The cache index is not saved, this run's members are found again by their hash
+        IOUtils.closeQuietly(cache);
+        IOUtils.closeQuietly(out);
+    }
+
+    private File compress(String statKey, TarArchiveEntry entry, File content, int level) throws IOException {
+        File tmp = cache.newTempMember();
+        MessageDigest digest = ArchiveCache.newDigest();
+        try {
+            try (OutputStream member = memberStream(new BufferedOutputStream(new FileOutputStream(tmp)), entry, level)) {
+                FileTransfer.copy(content, entry.getSize(), new DigestOutputStream(member, digest));
+                // Pad the content to a full tar record
+                int padding = (int) ((RECORD_SIZE - entry.getSize() % RECORD_SIZE) % RECORD_SIZE);
+                member.write(new byte[padding]);
+            }
+            // Keyed by what was actually compressed, in case the file changed since it was hashed
+            return cache.putMember(statKey, ArchiveCache.toHex(digest.digest()), level, tmp);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private OutputStream memberStream(OutputStream file, TarArchiveEntry entry, int level) throws IOException {
+        if (options.getThreads() > 1 && entry.getSize() > options.getBlockSize()) {
+            if (workers == null) {
+                workers = ParallelGZIPOutputStream.newWorkers(options.getThreads());
+            }
+            return new ParallelGZIPOutputStream(file, workers, options.getThreads(), options.getBlockSize(), level);
+        }
+        return new AdjustableGZIPOutputStream(file, TarGzip.GZIP_BUFFER_SIZE, level);
+    }
+
+    private void shutdownWorkers() {
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+
+    /**
+     * Serializes the tar header(s) of the entry, including the PAX headers of long names or big files
+     */
+    private byte[] header(TarArchiveEntry entry) throws IOException {
+        headerBuffer.reset();
+        // Records are written through as soon as they are complete, the content is written separately
+        TarGzip.tarStream(headerBuffer, RECORD_SIZE).putArchiveEntry(entry);
+        return headerBuffer.toByteArray();
+    }
+
+    private OutputStream headers() throws IOException {
+        if (headers == null) {
+            // Ended with finishMember(), which leaves the archive stream open
+            headers = new AdjustableGZIPOutputStream(out, RECORD_SIZE, options.getCompression().getLevel());
+        }
+        return headers;
+    }
+
+    private void finishHeaders() throws IOException {
+        if (headers != null) {
+            try {
+                headers.finishMember();
+            } finally {
+                headers = null;
+            }
+        }
+    }
+}
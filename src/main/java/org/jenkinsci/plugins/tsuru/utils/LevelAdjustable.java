@@ -0,0 +1,22 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.io.IOException;
+
+/**
+ * A compressing stream whose deflate level can be changed between entries, and which can be
+ * dropped without completing it.
+ */
+public interface LevelAdjustable {
+
+    /**
+     * @param level The deflate level used for the data written from now on
+     * @throws IOException
+     */
+    void setLevel(int level) throws IOException;
+
+    /**
+     * Frees the compressor (deflaters, worker threads) after a failure, without writing the rest
+     * of the stream. The underlying stream is left to its owner.
+     */
+    void abort();
+}
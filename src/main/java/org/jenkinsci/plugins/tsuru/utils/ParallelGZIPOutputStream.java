@@ -0,0 +1,303 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Block parallel gzip compression, the same approach as pigz.
+ *
+ * Input is split in fixed size blocks which are deflated concurrently on a worker pool.
+ * Every block is primed with the last 32K of the previous one and ends on a sync flush,
+ * so the blocks can be concatenated as-is into a single valid gzip member.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream implements LevelAdjustable {
+
+    // Same header as java.util.zip.GZIPOutputStream: no mtime, no name, OS 0
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final ExecutorService executor;
+
+    private final boolean ownsExecutor;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    // Input blocks go back to the pool once deflated
+    private final BufferPool blocks;
+
+    // Deflaters are reused across blocks, allocating one means a native zlib stream
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    private final int maxPending;
+
+    private final int blockSize;
+
+    private int level;
+
+    private final CRC32 crc = new CRC32();
+
+    private long totalIn = 0;
+
+    private byte[] block;
+
+    private int blockLength = 0;
+
+    private byte[] dictionary = null;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param out The underlying stream
+     * @param threads Number of compression workers
+     * @param blockSize Size of the blocks compressed independently, in bytes
+     * @param level Deflate compression level
+     * @throws IOException
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int threads, int blockSize, int level) throws IOException {
+        this(out, null, threads, blockSize, level);
+    }
+
+    /**
+     * @param out The underlying stream
+     * @param workers Compression workers shared with other streams, from {@link #newWorkers(int)}, left running on close.
+     *                Null to start a pool owned by this stream
+     * @param threads Number of compression workers
+     * @param blockSize Size of the blocks compressed independently, in bytes
+     * @param level Deflate compression level
+     * @throws IOException
+     */
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService workers, int threads, int blockSize, int level)
+            throws IOException
+    {
+        super(out);
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("blockSize must be at least " + DICTIONARY_SIZE + ": " + blockSize);
+        }
+        // Before starting the workers, nothing is left running if it fails
+        out.write(HEADER);
+        this.ownsExecutor = workers == null;
+        this.executor = ownsExecutor ? newWorkers(threads) : workers;
+        this.maxPending = threads * 2;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.blocks = new BufferPool(blockSize, maxPending + threads + 1);
+        this.block = blocks.acquire();
+    }
+
+    /**
+     * @param threads Number of compression workers
+     * @return A worker pool to share between the streams of one archive, to shut down once they are closed
+     */
+    public static ExecutorService newWorkers(int threads) {
+        final int pool = POOL_NUMBER.incrementAndGet();
+        final AtomicInteger worker = new AtomicInteger();
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "tsuru-gzip-" + pool + "-" + worker.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // Idle workers go away even if the pool is never shut down, e.g. when archiving failed
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        crc.update(b, off, len);
+        totalIn += len;
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Ends the current block early when the level changes, blocks are deflated with a single level.
+     */
+    @Override
+    public void setLevel(int level) throws IOException {
+        ensureOpen();
+        if (this.level != level) {
+            if (blockLength > 0) {
+                submitBlock(false);
+            }
+            this.level = level;
+        }
+    }
+
+    /**
+     * Writes the blocks already compressed. Partial blocks are kept, flushing them
+     * would only degrade the compression ratio.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            writeCompressed(pending.pollFirst());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitBlock(true);
+            while (!pending.isEmpty()) {
+                writeCompressed(pending.pollFirst());
+            }
+            writeInt((int) crc.getValue());
+            writeInt((int) totalIn);
+            out.flush();
+        } finally {
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+            Deflater deflater;
+            while ((deflater = deflaters.poll()) != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        } else {
+            // The shared workers go on with the other streams, only the blocks of this one are dropped
+            for (Future<byte[]> block : pending) {
+                block.cancel(true);
+            }
+        }
+        pending.clear();
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] input = block;
+        final int length = blockLength;
+        final byte[] dict = dictionary;
+        final int blockLevel = level;
+
+        // The tail of this block primes the next one, keeping the ratio close to a single stream
+        if (length >= DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(input, length - DICTIONARY_SIZE, length);
+        } else if (length > 0) {
+            dictionary = Arrays.copyOf(input, length);
+        }
+        block = blocks.acquire();
+        blockLength = 0;
+
+        pending.addLast(executor.submit(() -> deflate(input, length, dict, blockLevel, last)));
+        while (pending.size() > maxPending) {
+            writeCompressed(pending.pollFirst());
+        }
+    }
+
+    private byte[] deflate(byte[] input, int length, byte[] dict, int level, boolean last) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.setLevel(level);
+        }
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(input, 0, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buf = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    compressed.write(buf, 0, n);
+                }
+            } else {
+                // Sync flush ends the block on a byte boundary without setting BFINAL.
+                // A reused deflater applies its new level on the first call, which may stop before the input is consumed
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buf, 0, n);
+                } while (n == buf.length || !deflater.needsInput());
+            }
+            return compressed.toByteArray();
+        } finally {
+            blocks.release(input);
+            deflater.reset();
+            if (closed) {
+                deflater.end();
+            } else {
+                deflaters.offer(deflater);
+            }
+        }
+    }
+
+    private void writeCompressed(Future<byte[]> future) throws IOException {
+        try {
+            out.write(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+
+    private void writeInt(int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
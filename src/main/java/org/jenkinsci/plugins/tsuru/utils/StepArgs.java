@@ -0,0 +1,31 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.util.Map;
+
+/**
+ * Reads the arguments of the Tsuru steps, holding the options of the cluster as strings.
+ */
+public final class StepArgs {
+
+    private StepArgs() {
+    }
+
+    /**
+     * @param args The step arguments
+     * @param name The option, a count or a duration
+     * @param defaultValue The value when the option is missing, invalid or negative
+     * @return The value of the option
+     */
+    public static int getInt(Map<String, String> args, String name, int defaultValue) {
+        String value = args.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed < 0 ? defaultValue : parsed;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
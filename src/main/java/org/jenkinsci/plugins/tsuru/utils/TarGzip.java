@@ -4,18 +4,24 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 
 import java.io.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.util.*;
-import java.util.zip.GZIPOutputStream;
 
 /*
     Got from http://sloanseaman.com/wordpress/2012/05/22/tar-and-gzip-compression-in-java/
  */
 
 public class TarGzip {
+
+    static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    // Modification time of the entries of reproducible archives: 1980-01-01, the oldest date every archive tool handles
+    public static final long REPRODUCIBLE_MTIME = 315532800000L;
+
     /**
      * Compress (tar.gz) the input file (or directory) to the output file
      *
@@ -29,10 +35,24 @@ public class TarGzip {
      */
     public static void compressFile(File file, File output)
             throws IOException
+    {
+        compressFile(file, output, new ArchiveOptions());
+    }
+
+    /**
+     * Compress (tar.gz) the input file (or directory) to the output file
+     *
+     * @param file The file(s if a directory) to compress
+     * @param output The resulting output file (should end in .tar.gz)
+     * @param options The archive tuning options
+     * @throws IOException
+     */
+    public static void compressFile(File file, File output, ArchiveOptions options)
+            throws IOException
     {
         ArrayList<File> list = new ArrayList<File>(1);
         list.add(file);
-        compressFiles(list, output);
+        compressFiles(list, output, options);
     }
 
     /**
@@ -44,104 +64,396 @@ public class TarGzip {
      */
     public static void compressFiles(Collection<File> files, File output)
             throws IOException
+    {
+        compressFiles(files, output, new ArchiveOptions());
+    }
+
+    /**
+     * Compress (tar.gz) the input files to the output file
+     *
+     * @param files The files to compress
+     * @param output The resulting output file (should end in .tar.gz)
+     * @param options The archive tuning options
+     * @throws IOException
+     */
+    public static void compressFiles(Collection<File> files, File output, ArchiveOptions options)
+            throws IOException
     {
         // Create the output stream for the output file
-        FileOutputStream fos = new FileOutputStream(output);
-        // Wrap the output file stream in streams that will tar and gzip everything
-        TarArchiveOutputStream taos = new TarArchiveOutputStream(
-                new GZIPOutputStream(new BufferedOutputStream(fos)));
+        try (FileOutputStream fos = new FileOutputStream(output)) {
+            compressFiles(files, fos, options);
+        }
+    }
+
+    /**
+     * Compress (tar.gz) the input files into the output stream, which is closed when done
+     *
+     * @param files The files to compress
+     * @param output The stream receiving the tar.gz content (a file, a socket, an HTTP request body...)
+     * @throws IOException
+     */
+    public static void compressFiles(Collection<File> files, OutputStream output)
+            throws IOException
+    {
+        compressFiles(files, output, new ArchiveOptions());
+    }
+
+    /**
+     * Compress (tar.gz) the input files into the output stream, which is closed when done
+     *
+     * @param files The files to compress
+     * @param output The stream receiving the tar.gz content
+     * @param options The archive tuning options
+     * @throws IOException
+     */
+    public static void compressFiles(Collection<File> files, OutputStream output, ArchiveOptions options)
+            throws IOException
+    {
+        DeployMetrics metrics = options.getMetrics();
+        CountingOutputStream counter = null;
+        if (metrics != null) {
+            counter = new CountingOutputStream(output);
+            output = counter;
+        }
+
+        // Either a plain tar.gz stream, or an archive splicing gzip members cached from previous runs
+        ArchiveSink sink;
+        try {
+            if (options.getCacheDir() != null) {
+                sink = new IncrementalArchive(new BufferedOutputStream(output), ArchiveCache.lock(options.getCacheDir()), options);
+            } else {
+                // The gzip layer writes big chunks, no need for another buffer under it
+                sink = new StreamSink(output, options);
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(output);
+            throw e;
+        }
+        if (metrics != null) {
+            sink = new MeasuredSink(sink, metrics);
+        }
+
+        if (options.isReproducible()) {
+            List<File> sorted = new ArrayList<File>(files);
+            Collections.sort(sorted);
+            files = sorted;
+        }
+
+        boolean closed = false;
+        try {
+            // Get to putting all the files in the compressed output file
+            for (File f : files) {
+                addFilesToCompression(sink, options, f, ".");
+            }
+
+            // Close everything up
+            sink.close();
+            closed = true;
+        } finally {
+            if (!closed) {
+                // Failed or interrupted: no compression thread or native deflater is left behind
+                sink.abort();
+            }
+        }
+        if (counter != null) {
+            metrics.setCompressedBytes(counter.getByteCount());
+        }
+    }
+
+    /**
+     * Fingerprints the content the archive of the input files would have, without compressing it.
+     * Times and owners are left out, the same sources always give the same fingerprint.
+     *
+     * @param files The files to fingerprint
+     * @param options The archive options: the .tsuruignore rules, and the cache whose index spares reading unchanged files
+     * @return The SHA-256 fingerprint, in hex
+     * @throws IOException
+     */
+    public static String fingerprint(Collection<File> files, ArchiveOptions options)
+            throws IOException
+    {
+        WorkspaceFingerprint sink = new WorkspaceFingerprint(options.getCacheDir() != null ? new ArchiveCache(options.getCacheDir()) : null);
+        for (File f : files) {
+            addFilesToCompression(sink, options, f, ".");
+        }
+        sink.close();
+        return sink.getValue();
+    }
+
+    /**
+     * Creates the gzip layer, compressing blocks in parallel when more than one thread is configured
+     */
+    private static OutputStream gzipStream(OutputStream out, ArchiveOptions options)
+            throws IOException
+    {
+        int level = options.getCompression().getLevel();
+        if (options.getThreads() > 1) {
+            return new ParallelGZIPOutputStream(out, options.getThreads(), options.getBlockSize(), level);
+        }
+        return new AdjustableGZIPOutputStream(out, GZIP_BUFFER_SIZE, level);
+    }
+
+    /**
+     * Creates a tar stream accepting files bigger than 8G and long names
+     */
+    static TarArchiveOutputStream tarStream(OutputStream out, int blockSize) {
+        TarArchiveOutputStream taos = new TarArchiveOutputStream(out, blockSize);
         // TAR has an 8 gig file limit by default, this gets around that
         taos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX); // to get past the 8 gig limit
         // TAR originally didn't support long file names, so enable the support for it
         taos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        return taos;
+    }
 
-        // Get to putting all the files in the compressed output file
-        for (File f : files) {
-            addFilesToCompression(taos, f, ".");
+    /**
+     * Drops what differs between two checkouts of the same files: times and owners.
+     * The gzip headers have no timestamp already.
+     */
+    static void normalize(TarArchiveEntry entry) {
+        entry.setModTime(REPRODUCIBLE_MTIME);
+        entry.setUserId(0);
+        entry.setGroupId(0);
+        entry.setUserName("");
+        entry.setGroupName("");
+    }
+
+    /**
+     * Receives the entries found while walking the files to archive
+     */
+    interface ArchiveSink extends Closeable {
+        /**
+         * @param entry The tar entry
+         * @param content The file holding the entry content, null for directories and symlinks
+         * @throws IOException
+         */
+        void putEntry(TarArchiveEntry entry, File content) throws IOException;
+
+        /**
+         * Frees what the archive holds after a failure, without completing it, and closes its output
+         */
+        void abort();
+    }
+
+    /**
+     * Plain tar.gz stream
+     */
+    private static class StreamSink implements ArchiveSink {
+
+        private final OutputStream out;
+
+        private final LevelAdjustable gzip;
+
+        private final TarArchiveOutputStream taos;
+
+        private final CompressionStrategy compression;
+
+        private final boolean reproducible;
+
+        StreamSink(OutputStream out, ArchiveOptions options) throws IOException {
+            OutputStream gzipStream = gzipStream(out, options);
+            this.out = out;
+            this.gzip = (LevelAdjustable) gzipStream;
+            this.taos = tarStream(gzipStream, TarConstants.DEFAULT_BLKSIZE);
+            this.compression = options.getCompression();
+            this.reproducible = options.isReproducible();
         }
 
-        // Close everything up
-        taos.close();
-        fos.close();
+        @Override
+        public void putEntry(TarArchiveEntry entry, File content) throws IOException {
+            if (reproducible) {
+                normalize(entry);
+            }
+            if (content != null) {
+                gzip.setLevel(compression.levelFor(entry.getName(), entry.getSize()));
+            }
+            taos.putArchiveEntry(entry);
+            if (content != null) {
+                // Add the file to the archive
+                FileTransfer.copy(content, entry.getSize(), taos);
+            }
+            taos.closeArchiveEntry();
+        }
+
+        @Override
+        public void close() throws IOException {
+            taos.close();
+        }
+
+        @Override
+        public void abort() {
+            gzip.abort();
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Counts the files archived and their size
+     */
+    private static class MeasuredSink implements ArchiveSink {
+
+        private final ArchiveSink sink;
+
+        private final DeployMetrics metrics;
+
+        MeasuredSink(ArchiveSink sink, DeployMetrics metrics) {
+            this.sink = sink;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void putEntry(TarArchiveEntry entry, File content) throws IOException {
+            sink.putEntry(entry, content);
+            if (content != null) {
+                metrics.addFile(entry.getSize());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.close();
+        }
+
+        @Override
+        public void abort() {
+            sink.abort();
+        }
     }
 
     /**
-     * Does the work of compression and going recursive for nested directories
+     * Walks the file (or directory) adding it, and everything under it, to the archive.
      * <p/>
      *
-     * Borrowed heavily from http://www.thoughtspark.org/node/53
+     * Every entry not ignored costs a single lstat: its POSIX attributes give the type, size, mtime and
+     * permissions at once. {@link Files#walkFileTree} is not used as it only hands out the basic
+     * attributes, which would mean a second stat per file for the permissions.
+     *
+     * Reproducible archives list the directories in name order, instead of the file system order.
      *
-     * @param taos The archive
+     * @param sink The archive
+     * @param options The archive options, with the .tsuruignore rules matched against the path relative to the archive root
      * @param file The file to add to the archive
-     * @param dir The directory that should serve as the parent directory in the archivew
+     * @param dir The directory that should serve as the parent directory in the archive
      * @throws IOException
      */
-    private static void addFilesToCompression(TarArchiveOutputStream taos, File file, String dir)
+    private static void addFilesToCompression(ArchiveSink sink, ArchiveOptions options, File file, String dir)
             throws IOException
     {
-        if (file.isFile()) {
-            // Create an entry for the file
-            TarArchiveEntry tarFileEntry = new TarArchiveEntry(file, dir + File.separator + file.getName());
-            tarFileEntry.setMode(posixPermissions(file));
-            taos.putArchiveEntry(tarFileEntry);
-            // Add the file to the archive
-            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-            IOUtils.copy(bis, taos);
-            taos.closeArchiveEntry();
-            bis.close();
-        }
-        else if (Files.isSymbolicLink(file.toPath())) {
-            // Create an entry for the file
-            TarArchiveEntry tarFileEntry = new TarArchiveEntry(dir + File.separator + file.getName(), TarConstants.LF_SYMLINK);
-            tarFileEntry.setMode(posixPermissions(file));
-            tarFileEntry.setLinkName(Files.readSymbolicLink(file.toPath()).toString());
-            taos.putArchiveEntry(tarFileEntry);
-            // Just close it if it is a symlink
-            taos.closeArchiveEntry();
+        walk(sink, options, file.toPath(), relativePath(dir, file.getName()));
+    }
+
+    private static void walk(ArchiveSink sink, ArchiveOptions options, Path path, String relativePath)
+            throws IOException
+    {
+        // Matched before the lstat, so what is ignored either way is never stat'ed
+        int ignored = options.getIgnore().match(relativePath);
+        if (ignored == (TsuruIgnore.FILE_IGNORED | TsuruIgnore.DIRECTORY_IGNORED)) {
+            return;
         }
-        else if (file.isDirectory()) {
-            // Create an entry for the file
-            TarArchiveEntry tarFileEntry = new TarArchiveEntry(file, dir + File.separator + file.getName());
-            tarFileEntry.setMode(posixPermissions(file));
-            taos.putArchiveEntry(tarFileEntry);
-            // close the archive entry
-            taos.closeArchiveEntry();
+        BasicFileAttributes attrs = readAttributes(path, LinkOption.NOFOLLOW_LINKS);
+
+        if (attrs.isDirectory()) {
+            if ((ignored & TsuruIgnore.DIRECTORY_IGNORED) != 0) {
+                // Pruned with all its content
+                return;
+            }
+            sink.putEntry(newEntry(relativePath + "/", attrs), null);
             // go through all the files in the directory and using recursion, add them to the archive
-            for (File childFile : file.listFiles()) {
-                addFilesToCompression(taos, childFile, dir + File.separator + file.getName());
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                Iterable<Path> children = stream;
+                if (options.isReproducible()) {
+                    List<Path> sorted = new ArrayList<Path>();
+                    for (Path child : stream) {
+                        sorted.add(child);
+                    }
+                    Collections.sort(sorted);
+                    children = sorted;
+                }
+                for (Path child : children) {
+                    walk(sink, options, child, relativePath + "/" + child.getFileName());
+                }
             }
         }
+        else if ((ignored & TsuruIgnore.FILE_IGNORED) != 0) {
+            return;
+        }
+        else if (attrs.isSymbolicLink()) {
+            BasicFileAttributes target;
+            try {
+                target = readAttributes(path);
+            } catch (NoSuchFileException e) {
+                // Dangling link
+                target = null;
+            }
+            if (target != null && target.isRegularFile()) {
+                // Links to files are archived as the file they point to
+                sink.putEntry(newEntry(relativePath, target), path.toFile());
+            } else {
+                TarArchiveEntry tarFileEntry = new TarArchiveEntry("./" + relativePath, TarConstants.LF_SYMLINK);
+                tarFileEntry.setMode(posixPermissions(attrs));
+                tarFileEntry.setLinkName(Files.readSymbolicLink(path).toString());
+                sink.putEntry(tarFileEntry, null);
+            }
+        }
+        else if (attrs.isRegularFile()) {
+            sink.putEntry(newEntry(relativePath, attrs), path.toFile());
+        }
     }
 
-    // https://raw.githubusercontent.com/kamranzafar/jtar/master/src/main/java/org/kamranzafar/jtar/PermissionUtils.java
+    /**
+     * Reads the POSIX attributes when the file system has them (all but Windows), the basic ones otherwise
+     */
+    private static BasicFileAttributes readAttributes(Path path, LinkOption... options)
+            throws IOException
+    {
+        try {
+            return Files.readAttributes(path, PosixFileAttributes.class, options);
+        } catch (UnsupportedOperationException e) {
+            return Files.readAttributes(path, BasicFileAttributes.class, options);
+        }
+    }
 
-    private static Map<PosixFilePermission, Integer> posixPermissionToInteger = new HashMap<>();
+    /**
+     * Creates a file or directory (when the name ends with /) entry without touching the disk again
+     */
+    private static TarArchiveEntry newEntry(String relativePath, BasicFileAttributes attrs)
+    {
+        TarArchiveEntry tarFileEntry = new TarArchiveEntry("./" + relativePath);
+        tarFileEntry.setUserName("");
+        tarFileEntry.setModTime(attrs.lastModifiedTime().toMillis());
+        if (attrs.isRegularFile()) {
+            tarFileEntry.setSize(attrs.size());
+        }
+        tarFileEntry.setMode(posixPermissions(attrs));
+        return tarFileEntry;
+    }
 
-    static {
-        posixPermissionToInteger.put(PosixFilePermission.OWNER_EXECUTE, 0100);
-        posixPermissionToInteger.put(PosixFilePermission.OWNER_WRITE, 0200);
-        posixPermissionToInteger.put(PosixFilePermission.OWNER_READ, 0400);
+    /**
+     * @return The path of an archive entry relative to the archive root, with / as separator
+     */
+    private static String relativePath(String dir, String name) {
+        String path = dir.replace(File.separatorChar, '/') + "/" + name;
+        return path.startsWith("./") ? path.substring(2) : path;
+    }
 
-        posixPermissionToInteger.put(PosixFilePermission.GROUP_EXECUTE, 0010);
-        posixPermissionToInteger.put(PosixFilePermission.GROUP_WRITE, 0020);
-        posixPermissionToInteger.put(PosixFilePermission.GROUP_READ, 0040);
+    // https://raw.githubusercontent.com/kamranzafar/jtar/master/src/main/java/org/kamranzafar/jtar/PermissionUtils.java
 
-        posixPermissionToInteger.put(PosixFilePermission.OTHERS_EXECUTE, 0001);
-        posixPermissionToInteger.put(PosixFilePermission.OTHERS_WRITE, 0002);
-        posixPermissionToInteger.put(PosixFilePermission.OTHERS_READ, 0004);
+    // Mode bit of each PosixFilePermission, indexed by ordinal (OWNER_READ, OWNER_WRITE, ... OTHERS_EXECUTE)
+    private static final int[] PERMISSION_BITS = new int[PosixFilePermission.values().length];
+
+    static {
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            PERMISSION_BITS[permission.ordinal()] = 0400 >> permission.ordinal();
+        }
     }
 
-    private static int posixPermissions(File f) {
+    private static int posixPermissions(BasicFileAttributes attrs) {
+        if (!(attrs instanceof PosixFileAttributes)) {
+            // No POSIX permissions on this agent (Windows)
+            return attrs.isDirectory() ? 0755 : 0644;
+        }
         int number = 0;
-        try {
-            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(f.toPath(), LinkOption.NOFOLLOW_LINKS);
-            for (Map.Entry<PosixFilePermission, Integer> entry : posixPermissionToInteger.entrySet()) {
-                if (permissions.contains(entry.getKey())) {
-                    number += entry.getValue();
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        for (PosixFilePermission permission : ((PosixFileAttributes) attrs).permissions()) {
+            number |= PERMISSION_BITS[permission.ordinal()];
         }
         return number;
     }
@@ -0,0 +1,399 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matcher for the .tsuruignore file, with the .gitignore syntax:
+ * <ul>
+ * <li>blank lines and lines starting with {@code #} are skipped
+ * <li>{@code !} negates a pattern, re-including what a previous pattern excluded
+ * <li>a trailing {@code /} only matches directories
+ * <li>a pattern with a {@code /} elsewhere is anchored to the workspace root, otherwise it
+ * matches the name at any depth
+ * <li>{@code *}, {@code ?} and {@code [...]} do not cross directories, {@code **} does
+ * </ul>
+ * The last matching pattern wins, and an excluded directory is pruned with everything under
+ * it, so its content can't be re-included.
+ *
+ * Patterns are compiled once: plain names and paths go into hash tables, and all the globs
+ * into a single regex whose alternatives are ordered from the last pattern to the first, so
+ * a path costs two hash lookups and at most one regex match whatever the number of patterns.
+ */
+public class TsuruIgnore implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String FILENAME = ".tsuruignore";
+
+    /**
+     * {@link #match} flag of a path ignored when it is a file (or a link)
+     */
+    public static final int FILE_IGNORED = 1;
+
+    /**
+     * {@link #match} flag of a path ignored when it is a directory
+     */
+    public static final int DIRECTORY_IGNORED = 2;
+
+    private static final TsuruIgnore EMPTY = compile(Collections.<String>emptyList());
+
+    private final List<String> patterns;
+
+    private final boolean[] negated;
+
+    private final boolean[] directoryOnly;
+
+    // Index of the last plain pattern of each name, for files and for directories
+    private final Map<String, Last> names;
+
+    // Same for the plain paths, anchored to the root
+    private final Map<String, Last> paths;
+
+    // Every glob, null if there is none, and those also matching files when some only match directories
+    private final Globs globs;
+
+    private final Globs fileGlobs;
+
+    private TsuruIgnore(List<String> patterns, List<Rule> rules) {
+        this.patterns = patterns;
+        int count = rules.size();
+        negated = new boolean[count];
+        directoryOnly = new boolean[count];
+        names = new HashMap<>();
+        paths = new HashMap<>();
+        List<Integer> allGlobs = new ArrayList<>();
+        List<Integer> fileOnlyGlobs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Rule rule = rules.get(i);
+            negated[i] = rule.negated;
+            directoryOnly[i] = rule.directoryOnly;
+            if (rule.literal != null) {
+                Map<String, Last> literals = rule.nameOnly ? names : paths;
+                Last last = literals.get(rule.literal);
+                if (last == null) {
+                    last = new Last();
+                    literals.put(rule.literal, last);
+                }
+                last.directory = i;
+                if (!rule.directoryOnly) {
+                    last.file = i;
+                }
+            } else {
+                allGlobs.add(i);
+                if (!rule.directoryOnly) {
+                    fileOnlyGlobs.add(i);
+                }
+            }
+        }
+        globs = Globs.compile(rules, allGlobs);
+        fileGlobs = fileOnlyGlobs.size() == allGlobs.size() ? globs : Globs.compile(rules, fileOnlyGlobs);
+    }
+
+    public static TsuruIgnore empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Loads the .tsuruignore file of a directory
+     *
+     * @param dir The workspace directory
+     * @return The matcher, empty if there is no .tsuruignore
+     * @throws IOException
+     */
+    public static TsuruIgnore load(File dir) throws IOException {
+        File file = new File(dir, FILENAME);
+        if (!file.isFile()) {
+            return EMPTY;
+        }
+        return compile(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param lines The lines of an ignore file
+     * @return The compiled matcher
+     * @throws IllegalArgumentException When a pattern is not a valid glob, e.g. [z-a]
+     */
+    public static TsuruIgnore compile(List<String> lines) {
+        List<Rule> rules = new ArrayList<>();
+        List<String> patterns = new ArrayList<>();
+        for (String line : lines) {
+            Rule rule = Rule.parse(line);
+            if (rule != null) {
+                rules.add(rule);
+                patterns.add(line.trim());
+            }
+        }
+        return new TsuruIgnore(patterns, rules);
+    }
+
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    public List<String> getPatterns() {
+        return Collections.unmodifiableList(patterns);
+    }
+
+    /**
+     * @param path The path relative to the workspace root, with / as separator
+     * @param directory Whether the path is a directory
+     * @return true when the path must not be archived
+     */
+    public boolean isIgnored(String path, boolean directory) {
+        return (match(path) & (directory ? DIRECTORY_IGNORED : FILE_IGNORED)) != 0;
+    }
+
+    /**
+     * Matches a path whose type is not known yet, so the paths ignored either way are skipped
+     * without reading their attributes.
+     *
+     * @param path The path relative to the workspace root, with / as separator
+     * @return {@link #FILE_IGNORED} and/or {@link #DIRECTORY_IGNORED}, 0 when the path is archived
+     */
+    public int match(String path) {
+        if (patterns.isEmpty()) {
+            return 0;
+        }
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        Last byName = names.get(name);
+        Last byPath = paths.get(path);
+        int file = Math.max(byName == null ? -1 : byName.file, byPath == null ? -1 : byPath.file);
+        int directory = Math.max(byName == null ? -1 : byName.directory, byPath == null ? -1 : byPath.directory);
+
+        // A glob only matters when it comes after the plain patterns found, for files at least
+        if (globs != null && globs.last > file) {
+            int glob = globs.match(path);
+            directory = Math.max(directory, glob);
+            if (glob >= 0 && !directoryOnly[glob]) {
+                file = Math.max(file, glob);
+            } else if (glob >= 0 && fileGlobs != null && fileGlobs.last > file) {
+                // The last glob only matches directories, an earlier one may match files
+                file = Math.max(file, fileGlobs.match(path));
+            }
+        }
+        return (ignored(file) ? FILE_IGNORED : 0) | (ignored(directory) ? DIRECTORY_IGNORED : 0);
+    }
+
+    private boolean ignored(int rule) {
+        return rule >= 0 && !negated[rule];
+    }
+
+    @Override
+    public String toString() {
+        return patterns.toString();
+    }
+
+    /**
+     * Indexes of the last plain patterns matching a path as a file and as a directory, -1 if none
+     */
+    private static final class Last implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int file = -1;
+
+        private int directory = -1;
+    }
+
+    /**
+     * Globs compiled into a single regex, each alternative captured in a group
+     */
+    private static final class Globs implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Pattern pattern;
+
+        // Rule index of each group, the last rule first
+        private final int[] rules;
+
+        private final int last;
+
+        private Globs(Pattern pattern, int[] rules) {
+            this.pattern = pattern;
+            this.rules = rules;
+            this.last = rules[0];
+        }
+
+        static Globs compile(List<Rule> rules, List<Integer> indexes) {
+            if (indexes.isEmpty()) {
+                return null;
+            }
+            StringBuilder regex = new StringBuilder();
+            int[] groups = new int[indexes.size()];
+            // The regex tries the alternatives in order: the first one matching is the last pattern
+            for (int g = 0; g < groups.length; g++) {
+                groups[g] = indexes.get(indexes.size() - 1 - g);
+                Rule rule = rules.get(groups[g]);
+                if (g > 0) {
+                    regex.append('|');
+                }
+                regex.append(rule.nameOnly ? "((?:.*/)?" : "(").append(rule.regex).append(')');
+            }
+            return new Globs(Pattern.compile(regex.toString()), groups);
+        }
+
+        /**
+         * @return The index of the last glob matching the path, -1 if none
+         */
+        int match(String path) {
+            Matcher matcher = pattern.matcher(path);
+            if (!matcher.matches()) {
+                return -1;
+            }
+            for (int g = 0; g < rules.length; g++) {
+                if (matcher.start(g + 1) >= 0) {
+                    return rules[g];
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final class Rule {
+
+        private final boolean negated;
+
+        private final boolean directoryOnly;
+
+        // Matches the name only, at any depth
+        private final boolean nameOnly;
+
+        // Plain names and paths are looked up, the others are globs translated to a regex
+        private final String literal;
+
+        private final String regex;
+
+        private Rule(boolean negated, boolean directoryOnly, boolean nameOnly, String literal, String regex) {
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.nameOnly = nameOnly;
+            this.literal = literal;
+            this.regex = regex;
+        }
+
+        static Rule parse(String line) {
+            String p = trimTrailingSpaces(line);
+            if (p.isEmpty() || p.startsWith("#")) {
+                return null;
+            }
+            boolean negated = false;
+            if (p.startsWith("!")) {
+                negated = true;
+                p = p.substring(1);
+            } else if (p.startsWith("\\!") || p.startsWith("\\#")) {
+                p = p.substring(1);
+            }
+            boolean directoryOnly = false;
+            while (p.endsWith("/")) {
+                directoryOnly = true;
+                p = p.substring(0, p.length() - 1);
+            }
+            if (p.isEmpty()) {
+                return null;
+            }
+            boolean nameOnly = p.indexOf('/') < 0;
+            if (p.startsWith("/")) {
+                p = p.substring(1);
+            }
+            if (p.startsWith("./")) {
+                p = p.substring(2);
+            }
+            if (!hasWildcard(p)) {
+                return new Rule(negated, directoryOnly, nameOnly, p.replace("\\", ""), null);
+            }
+            String regex = toRegex(p);
+            try {
+                // Checked alone, the combined regex would not tell which pattern is wrong
+                Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid " + FILENAME + " pattern: " + line.trim(), e);
+            }
+            return new Rule(negated, directoryOnly, nameOnly, null, regex);
+        }
+
+        private static boolean hasWildcard(String p) {
+            for (int i = 0; i < p.length(); i++) {
+                char c = p.charAt(i);
+                if (c == '*' || c == '?' || c == '[') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String trimTrailingSpaces(String line) {
+            int end = line.length();
+            while (end > 0 && (line.charAt(end - 1) == ' ' || line.charAt(end - 1) == '\t' || line.charAt(end - 1) == '\r')) {
+                if (end > 1 && line.charAt(end - 2) == '\\') {
+                    break;
+                }
+                end--;
+            }
+            return line.substring(0, end);
+        }
+
+        static String toRegex(String glob) {
+            StringBuilder sb = new StringBuilder();
+            int i = 0;
+            int length = glob.length();
+            while (i < length) {
+                char c = glob.charAt(i);
+                if (c == '*') {
+                    boolean doubleStar = i + 1 < length && glob.charAt(i + 1) == '*';
+                    boolean segmentStart = i == 0 || glob.charAt(i - 1) == '/';
+                    if (doubleStar && segmentStart && (i + 2 == length || glob.charAt(i + 2) == '/')) {
+                        if (i + 2 == length) {
+                            // trailing "/**": everything inside
+                            sb.append(".*");
+                            i += 2;
+                        } else {
+                            // leading or middle "**/": zero or more directories
+                            sb.append("(?:.*/)?");
+                            i += 3;
+                        }
+                        continue;
+                    }
+                    sb.append("[^/]*");
+                    while (i < length && glob.charAt(i) == '*') {
+                        i++;
+                    }
+                    continue;
+                }
+                if (c == '?') {
+                    sb.append("[^/]");
+                } else if (c == '[') {
+                    int close = glob.indexOf(']', i + 2);
+                    if (close < 0) {
+                        sb.append("\\[");
+                    } else {
+                        String set = glob.substring(i + 1, close);
+                        if (set.startsWith("!")) {
+                            set = "^" + set.substring(1);
+                        }
+                        sb.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                        i = close;
+                    }
+                } else if (c == '\\' && i + 1 < length) {
+                    sb.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                } else {
+                    sb.append(Pattern.quote(String.valueOf(c)));
+                }
+                i++;
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Forwards the output of a Tsuru deploy or build to the build console as it arrives, flushing
+ * every chunk, while watching for the "OK" line Tsuru ends successful operations with.
+ *
+ * Only the current line is kept, and only up to a few bytes: the output itself is never buffered.
+ */
+public class TsuruOutputStream extends FilterOutputStream {
+
+    private static final String OK_MARKER = "OK";
+
+    // Longer lines can't be the marker, even with some blanks around
+    private static final int MAX_MARKER_LINE = 64;
+
+    private final byte[] line = new byte[MAX_MARKER_LINE];
+
+    private int lineLength = 0;
+
+    private boolean lineOverflow = false;
+
+    // Whether the last non blank complete line was the marker
+    private boolean lastLineOk = false;
+
+    private long count = 0;
+
+    /**
+     * @param out The console, left open on close
+     */
+    public TsuruOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        track((byte) b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        for (int i = off; i < off + len; i++) {
+            track(b[i]);
+        }
+        count += len;
+    }
+
+    /**
+     * Writes a message and flushes it
+     */
+    public void print(String s) throws IOException {
+        write(s.getBytes(StandardCharsets.UTF_8));
+        flush();
+    }
+
+    /**
+     * @return true when the output so far ends with the "OK" line, ignoring trailing blank lines
+     */
+    public boolean isOk() {
+        if (!isCurrentLineBlank()) {
+            return isCurrentLineOk();
+        }
+        return lastLineOk;
+    }
+
+    /**
+     * @return The number of bytes written
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Flushes, the console stays open
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void track(byte b) {
+        if (b == '\n') {
+            if (!isCurrentLineBlank()) {
+                lastLineOk = isCurrentLineOk();
+            }
+            lineLength = 0;
+            lineOverflow = false;
+        } else if (lineLength < MAX_MARKER_LINE) {
+            line[lineLength++] = b;
+        } else {
+            lineOverflow = true;
+        }
+    }
+
+    private String currentLine() {
+        return new String(line, 0, lineLength, StandardCharsets.US_ASCII).trim();
+    }
+
+    private boolean isCurrentLineBlank() {
+        return !lineOverflow && currentLine().isEmpty();
+    }
+
+    private boolean isCurrentLineOk() {
+        return !lineOverflow && OK_MARKER.equals(currentLine());
+    }
+}
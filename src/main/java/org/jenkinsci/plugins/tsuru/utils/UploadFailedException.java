@@ -0,0 +1,21 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import io.tsuru.client.ApiException;
+
+import java.io.IOException;
+
+/**
+ * Upload of a deploy or build request failing before Tsuru received all of it: Tsuru did not
+ * start working on it, so there is no deployment to follow.
+ *
+ * The cause is the last connection failure once the retries are exhausted, or the failure of
+ * the archive writer, which is not retried.
+ */
+public class UploadFailedException extends ApiException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UploadFailedException(IOException cause) {
+        super(cause);
+    }
+}
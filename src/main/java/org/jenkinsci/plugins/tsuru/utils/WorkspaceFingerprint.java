@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Content fingerprint of the files that would be archived, without compressing anything.
+ *
+ * Each entry contributes its path, type, mode, size, link target and content hash, but not its
+ * times or owners, so a fresh checkout of the same sources has the same fingerprint. Entries are
+ * sorted by path, the walk order does not matter. Content hashes come from the {@link ArchiveCache}
+ * index when the file stat did not change, files are only read otherwise.
+ */
+class WorkspaceFingerprint implements TarGzip.ArchiveSink {
+
+    private final ArchiveCache cache;
+
+    // entry name -> entry description
+    private final Map<String, String> entries = new TreeMap<>();
+
+    private String value = null;
+
+    /**
+     * @param cache The archive cache holding known content hashes, or null to hash every file
+     */
+    WorkspaceFingerprint(ArchiveCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public void putEntry(TarArchiveEntry entry, File content) throws IOException {
+        StringBuilder sb = new StringBuilder()
+                .append((char) entry.getLinkFlag())
+                .append('|').append(Integer.toOctalString(entry.getMode()))
+                .append('|').append(entry.getSize())
+                .append('|').append(entry.getLinkName());
+        if (content != null) {
+            sb.append('|').append(contentHash(entry, content));
+        }
+        entries.put(entry.getName(), sb.toString());
+    }
+
+    @Override
+    public void close() {
+        MessageDigest digest = ArchiveCache.newDigest();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        value = ArchiveCache.toHex(digest.digest());
+    }
+
+    @Override
+    public void abort() {
+        // Nothing held
+    }
+
+    /**
+     * @return The SHA-256 fingerprint, once closed
+     */
+    String getValue() {
+        return value;
+    }
+
+    private String contentHash(TarArchiveEntry entry, File content) throws IOException {
+        if (cache != null) {
+            String hash = cache.getContentHash(ArchiveCache.statKey(entry.getName(), entry.getSize(), entry.getModTime().getTime()));
+            if (hash != null) {
+                return hash;
+            }
+        }
+        return ArchiveCache.sha256(content);
+    }
+}
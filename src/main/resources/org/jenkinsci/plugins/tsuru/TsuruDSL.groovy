@@ -1,7 +1,6 @@
 package org.jenkinsci.plugins.tsuru
 
 import com.cloudbees.groovy.cps.NonCPS
-import com.cloudbees.plugins.credentials.CredentialsProvider
 import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl
 import hudson.AbortException
 import hudson.EnvVars
@@ -9,13 +8,15 @@ import hudson.FilePath
 import hudson.Util
 import hudson.model.Run
 import io.tsuru.client.api.TsuruApi
-import io.tsuru.client.model.LoginToken
+import org.jenkinsci.plugins.tsuru.pipeline.CredentialLookups
 import org.jenkinsci.plugins.tsuru.pipeline.TsuruAction
+import org.jenkinsci.plugins.tsuru.pipeline.TsuruConnections
 import org.jenkinsci.plugins.tsuru.pipeline.TsuruContextInit
 import org.jenkinsci.plugins.workflow.cps.EnvActionImpl
 
 import hudson.model.Job;
 
+import java.util.concurrent.ConcurrentHashMap
 import java.util.logging.Logger
 
 class TsuruDSL implements Serializable {
@@ -26,10 +27,6 @@ class TsuruDSL implements Serializable {
 
     private int logLevel = 0; // Modified by calls to openshift.logLevel
 
-    private transient Tsuru.DescriptorImpl config = new Tsuru.DescriptorImpl();
-
-    private transient static HashMap<String, TsuruApi> apiInstance = null;
-
     private transient Job job;
 
     Boolean authenticated = false;
@@ -39,12 +36,8 @@ class TsuruDSL implements Serializable {
     public TsuruDSL(org.jenkinsci.plugins.workflow.cps.CpsScript script) {
         this.script = script;
 
-        if (this.apiInstance == null) {
-            this.apiInstance = new HashMap<String, TsuruApi>();
-        }
-
         if (this.contexts == null) {
-            this.contexts = new HashMap<String, Context>();
+            this.contexts = new ConcurrentHashMap<String, Context>();
         }
 
         Run<?, ?> build = script.$build();
@@ -55,30 +48,45 @@ class TsuruDSL implements Serializable {
     }
 
     public TsuruApi connect() {
-        Context localCurrentContext = contexts.get(this.job.getFullName());
+        Context localCurrentContext = apiContext();
         LOGGER.println("Running connect on -> " + localCurrentContext.getServerUrl());
         LOGGER.println("Job Name -> " + this.job.getFullName());
-        TsuruApi localApiInstance = this.apiInstance.get(localCurrentContext.getServerUrl());
-        if (localApiInstance == null) {
-            localApiInstance = new TsuruApi();
-            this.apiInstance.put(localCurrentContext.getServerUrl(), localApiInstance);
-        }
-
-        String apiUrl = localCurrentContext.getServerUrl();
-        if (apiUrl.endsWith("/")) {
-            apiUrl = apiUrl.substring(0, apiUrl.length() - 1);
-        }
-        localApiInstance.getApiClient().setBasePath(apiUrl);
+        TsuruApi localApiInstance = api(localCurrentContext);
         if (localCurrentContext.getEmail() != null) {
-            LoginToken token = localApiInstance.login(localCurrentContext.getEmail(), localCurrentContext.getPassword());
-            loginToken = token.getToken();
-        } else {
-            localApiInstance.getApiClient().addDefaultHeader("Authorization", "bearer " + localCurrentContext.getToken());
+            loginToken = localApiInstance.getApiClient().getDefaultHeaders().get("Authorization").substring("bearer ".length());
         }
         authenticated = true;
         return localApiInstance;
     }
 
+    /**
+     * The client of the context, shared with the other builds using the same server and
+     * credential: the login token is reused until it expires.
+     */
+    private TsuruApi api(Context context) {
+        HashMap<String, String> httpArgs = httpArgs(context.getClusterConfig());
+        if (context.getEmail() != null) {
+            return TsuruConnections.connect(context.getServerUrl(), context.getEmail(), context.getPassword(), httpArgs);
+        }
+        return TsuruConnections.connectWithToken(context.getServerUrl(), context.getToken(), httpArgs);
+    }
+
+    /**
+     * The HTTP options of the cluster, for its pooled client
+     */
+    @NonCPS
+    private static HashMap<String, String> httpArgs(TsuruConfig cc) {
+        HashMap<String, String> args = new HashMap<String, String>();
+        if (cc != null) {
+            args.put("httpMaxIdleConnections", String.valueOf(cc.getHttpMaxIdleConnections()));
+            args.put("httpKeepAlive", String.valueOf(cc.getHttpKeepAlive()));
+            args.put("httpConnectTimeout", String.valueOf(cc.getHttpConnectTimeout()));
+            args.put("httpReadTimeout", String.valueOf(cc.getHttpReadTimeout()));
+            args.put("disableHttp2", String.valueOf(cc.isDisableHttp2()));
+        }
+        return args;
+    }
+
     public Boolean deploy(String appName) {
         return deploy(appName, null);
     }
@@ -88,14 +96,68 @@ class TsuruDSL implements Serializable {
     }
 
     public Boolean deploy(String appName, String message, String commit) {
+        return deploy(appName, message, commit, null);
+    }
+
+    /**
+     * compression: "default", a level from "0" to "9", "store", or "auto"/"auto:<level>"
+     * to store already compressed files (jars, images, archives...) as is.
+     */
+    public Boolean deploy(String appName, String message, String commit, String compression) {
         HashMap<String, String> Param = new HashMap<String, String>();
         appName = appName.toLowerCase();
         Param.put("appName", appName);
         Param.put("message", message);
         Param.put("commit", commit);
+        Param.put("compression", compression);
         return executeTsuruAction(TsuruAction.Action.DEPLOY, Param);
     }
 
+    public Map<String, Boolean> deployAll(List<String> appNames) {
+        return deployAll([:], appNames);
+    }
+
+    /**
+     * Deploys the workspace to several applications, archiving it once:
+     * tsuru.deployAll(['app-us', 'app-eu'], parallelism: 4, message: "...")
+     *
+     * Options: parallelism (applications deployed at a time, 4 by default), message, commit,
+     * compression, and imageTag to deploy an image instead of the workspace.
+     *
+     * @return The success of the deployment of each application
+     */
+    public Map<String, Boolean> deployAll(Map options, List<String> appNames) {
+        HashMap<String, String> Param = new HashMap<String, String>();
+        Param.put("appNames", toAppNames(appNames));
+        Param.put("parallelism", String.valueOf(options.parallelism ?: 4));
+        Param.put("message", toSingleString(options.message));
+        Param.put("commit", toSingleString(options.commit));
+        Param.put("compression", toSingleString(options.compression));
+        Param.put("imageTag", toSingleString(options.imageTag));
+        return runTsuruAction(TsuruAction.Action.DEPLOY_ALL, Param).results;
+    }
+
+    public Map<String, Boolean> buildAndDeployAll(String appName, String imageTag, List<String> appNames) {
+        return buildAndDeployAll([:], appName, imageTag, appNames);
+    }
+
+    /**
+     * Builds the workspace image once, then deploys it to the applications with no upload:
+     * tsuru.buildAndDeployAll('myapp', 'v42', ['myapp-us', 'myapp-eu'], parallelism: 4)
+     *
+     * Options: those of deployAll, and image, the reference to deploy when it is not the tag itself.
+     *
+     * @return The success of the deployment of each application, a failed build fails the step
+     */
+    public Map<String, Boolean> buildAndDeployAll(Map options, String appName, String imageTag, List<String> appNames) {
+        build(appName, imageTag, toSingleString(options.compression));
+
+        HashMap deployOptions = new HashMap(options);
+        deployOptions.remove("compression");
+        deployOptions.put("imageTag", options.image ?: imageTag);
+        return deployAll(deployOptions, appNames);
+    }
+
     public Boolean deploy_image(String appName, String message, String imageTag) {
         HashMap<String, String> Param = new HashMap<String, String>();
         appName = appName.toLowerCase();
@@ -114,10 +176,15 @@ class TsuruDSL implements Serializable {
     }
 
     public Boolean build(String appName, String imageTag) {
+        return build(appName, imageTag, null);
+    }
+
+    public Boolean build(String appName, String imageTag, String compression) {
         HashMap<String, String> Param = new HashMap<String, String>();
         appName = appName.toLowerCase();
         Param.put("appName", appName);
         Param.put("imageTag", imageTag);
+        Param.put("compression", compression);
         return executeTsuruAction(TsuruAction.Action.BUILD, Param);
     }
 
@@ -198,8 +265,25 @@ class TsuruDSL implements Serializable {
     }
 
     private Boolean executeTsuruAction (TsuruAction.Action action, HashMap<String, String> Param) {
-        Context localCurrentContext = contexts.get(this.job.getFullName());
-        TsuruApi localApiInstance = this.apiInstance.get(localCurrentContext.getServerUrl());
+        return runTsuruAction(action, Param).result;
+    }
+
+    private TsuruAction.Execution runTsuruAction (TsuruAction.Action action, HashMap<String, String> Param) {
+        Context localCurrentContext = apiContext();
+        TsuruApi localApiInstance = api(localCurrentContext);
+        TsuruConfig cc = localCurrentContext.getClusterConfig();
+        if (cc != null) {
+            Param.put("streamingDeploy", String.valueOf(cc.isStreamingDeploy()));
+            Param.put("compressionThreads", String.valueOf(cc.getCompressionThreads()));
+            Param.put("compressionBlockSize", String.valueOf(cc.getCompressionBlockSize()));
+            Param.put("incrementalArchive", String.valueOf(cc.isIncrementalArchive()));
+            Param.put("reproducibleArchive", String.valueOf(cc.isReproducibleArchive()));
+            Param.put("skipUnchangedDeploy", String.valueOf(cc.isSkipUnchangedDeploy()));
+            Param.put("uploadRetries", String.valueOf(cc.getUploadRetries()));
+            Param.put("maxClusterDeploys", String.valueOf(cc.getMaxClusterDeploys()));
+            Param.put("maxAppDeploys", String.valueOf(cc.getMaxAppDeploys()));
+            Param.putAll(httpArgs(cc));
+        }
         def Args = HashMap.newInstance();
         Args.putAll([
                 apiInstance: localApiInstance,
@@ -207,12 +291,35 @@ class TsuruDSL implements Serializable {
                 Args: Param
         ]);
 
-        TsuruAction.Execution result = script._TsuruAction(Args);
-        return result.result;
+        return script._TsuruAction(Args);
     }
 
-    private Context currentContext = null;
-    private HashMap<String, Context> contexts = null;
+    // Contexts of the withAPI and withApplication blocks running, by the TSURU_CONTEXT_ID of their
+    // body: parallel branches each see their own
+    private Map<String, Context> contexts = null;
+
+    /**
+     * The context of the innermost block around the caller, in its branch
+     */
+    private Context currentContext() {
+        String id = script.env.TSURU_CONTEXT_ID;
+        // Outside of the blocks, or in a branch started by none: another branch's server and credential are never used
+        return id == null ? null : contexts.get(id);
+    }
+
+    /**
+     * The withAPI context around the caller, in its branch
+     */
+    private Context apiContext() {
+        Context context = currentContext();
+        while (context != null && context.getContextId() != ContextId.WITH_API) {
+            context = context.parent;
+        }
+        if (context == null) {
+            throw new AbortException("Tsuru steps can only be used within a tsuru.withAPI block");
+        }
+        return context;
+    }
 
     enum ContextId implements Serializable{
         WITH_API("tsuru.withAPI"), WITH_APPLICATION("tsuru.withApplication")
@@ -236,8 +343,15 @@ class TsuruDSL implements Serializable {
         private String token = null;
         private String serverUrl;
         private String application;
+        private TsuruConfig clusterConfig;
         private ContextId id;
 
+        // The credential, looked up once per context and never saved with the program
+        private transient boolean credentialResolved = false;
+        private transient String credentialEmail;
+        private transient String credentialPassword;
+        private transient String credentialToken;
+
         private List<FilePath> destroyOnReturn = new ArrayList<FilePath>();
 
         protected Context(Context parent, ContextId id) {
@@ -250,12 +364,15 @@ class TsuruDSL implements Serializable {
             if (destroyOnReturn == null) {
                 throw new IllegalStateException(this.getClass() + " has already been perform once and cannot be used again");
             }
-            Context lastContext = currentContext;
-            currentContext = this;
+            String id = UUID.randomUUID().toString();
+            contexts.put(id, this);
             try {
-                return body()
+                // Scoped to the block and its branch, unlike a field of the DSL
+                return script.withEnv(["TSURU_CONTEXT_ID=" + id]) {
+                    body()
+                }
             } finally {
-                currentContext = lastContext;
+                contexts.remove(id);
                 destroyOnReturn.each{ fp -> fp.delete() }
                 destroyOnReturn = null;
             }
@@ -287,13 +404,46 @@ class TsuruDSL implements Serializable {
             this.@serverUrl = Util.fixEmptyAndTrim(serverUrl);
         }
 
-        public String getEmail() {
-            if (this.@credentialsId != null) {
-                UsernamePasswordCredentialsImpl cred = CredentialsProvider.findCredentialById(credentialsId, UsernamePasswordCredentialsImpl.class, script.$build(), Collections.emptyList());
+        public TsuruConfig getClusterConfig() {
+            if (this.@clusterConfig != null) {
+                return this.@clusterConfig;
+            }
+            if (parent != null) {
+                return parent.getClusterConfig();
+            }
+            return null;
+        }
+
+        public void setClusterConfig(TsuruConfig clusterConfig) {
+            this.@clusterConfig = clusterConfig;
+        }
+
+        /**
+         * Looks the credential up on first use: credential stores may be slow
+         */
+        @NonCPS
+        private void resolveCredential() {
+            if (this.@credentialResolved || this.@credentialsId == null) {
+                return;
+            }
+            UsernamePasswordCredentialsImpl login = CredentialLookups.find(this.@credentialsId, UsernamePasswordCredentialsImpl.class, script.$build());
+            if (login != null) {
+                this.@credentialEmail = login.getUsername();
+                this.@credentialPassword = login.getPassword().plainText;
+            } else {
+                TsuruCredentials cred = CredentialLookups.find(this.@credentialsId, TsuruCredentialsImpl.class, script.$build());
                 if (cred != null) {
-                    return cred.getUsername();
+                    this.@credentialToken = cred.getToken();
                 }
             }
+            this.@credentialResolved = true;
+        }
+
+        public String getEmail() {
+            resolveCredential();
+            if (this.@credentialEmail != null) {
+                return this.@credentialEmail;
+            }
             return this.@email;
         }
 
@@ -306,11 +456,9 @@ class TsuruDSL implements Serializable {
         }
 
         public String getPassword() {
-            if (this.@credentialsId != null) {
-                UsernamePasswordCredentialsImpl cred = CredentialsProvider.findCredentialById(credentialsId, UsernamePasswordCredentialsImpl.class, script.$build(), Collections.emptyList());
-                if (cred != null) {
-                    return cred.getPassword().plainText;
-                }
+            resolveCredential();
+            if (this.@credentialEmail != null) {
+                return this.@credentialPassword;
             }
             return this.@password;
         }
@@ -320,17 +468,19 @@ class TsuruDSL implements Serializable {
         }
 
         public String getToken() {
-            if (this.@credentialsId != null) {
-                TsuruCredentials cred = CredentialsProvider.findCredentialById(credentialsId, TsuruCredentialsImpl.class, script.$build(), Collections.emptyList());
-                if (cred != null) {
-                    return cred.getToken();
-                }
+            resolveCredential();
+            if (this.@credentialToken != null) {
+                return this.@credentialToken;
             }
             return this.@token;
         }
 
         public void setCredentialsId(String credentialsId) {
             this.@credentialsId = Util.fixEmptyAndTrim(credentialsId);
+            this.@credentialResolved = false;
+            this.@credentialEmail = null;
+            this.@credentialPassword = null;
+            this.@credentialToken = null;
         }
     }
 
@@ -373,12 +523,12 @@ class TsuruDSL implements Serializable {
     }
 
     public String application() {
-        Context localCurrentContext = contexts.get(this.job.getFullName());
+        Context localCurrentContext = apiContext();
         return localCurrentContext.getApplication();
     }
 
     public String tsuruApi() {
-        Context localCurrentContext = contexts.get(this.job.getFullName());
+        Context localCurrentContext = apiContext();
         return localCurrentContext.getServerUrl();
     }
 
@@ -394,17 +544,18 @@ class TsuruDSL implements Serializable {
 
             Context context = new Context(null, ContextId.WITH_API);
 
-            TsuruConfig cc = config.getClusterConfig(name);
+            TsuruConfig cc = Tsuru.DescriptorImpl.get().getClusterConfig(name);
 
             if (name == null) {
                 // See if a clusterName named "default" has been defined.
-                cc = config.getClusterConfig("default");
+                cc = Tsuru.DescriptorImpl.get().getClusterConfig("default");
             }
 
             if (cc != null) {
                 context.setCredentialsId(cc.credentialsId);
                 context.setApplication("tsuru-dashboard");
                 context.setServerUrl(cc.getServerUrl());
+                context.setClusterConfig(cc);
             }
 
             if (password != null) {
@@ -413,8 +564,6 @@ class TsuruDSL implements Serializable {
                 context.setPassword(password);
             }
 
-            contexts.put(this.job.getFullName(), context);
-
             context.run {
                 body()
             }
@@ -424,8 +573,8 @@ class TsuruDSL implements Serializable {
 
     public <V> V withApplication(Object oapplicationName=null, Closure<V> body) {
         String applicationName = toSingleString(oapplicationName);
-        dieIfWithout(ContextId.WITH_APPLICATION, currentContext, ContextId.WITH_API)
-        Context context = new Context(currentContext, ContextId.WITH_APPLICATION);
+        dieIfWithout(ContextId.WITH_APPLICATION, currentContext(), ContextId.WITH_API)
+        Context context = new Context(currentContext(), ContextId.WITH_APPLICATION);
         context.setApplication(applicationName);
         return context.run {
             body()
@@ -485,6 +634,18 @@ class TsuruDSL implements Serializable {
         return l;
     }
 
+    /**
+     * See details in toSingleString for rationale.
+     */
+    @NonCPS
+    private static String toAppNames(List<Object> objects) {
+        ArrayList<String> l = toStringList(objects);
+        for (int i = 0; i < l.size(); i++) {
+            l.set(i, l.get(i).toLowerCase());
+        }
+        return String.join(",", l);
+    }
+
     private <V> V node(Closure<V> body) {
         if (script.env.NODE_NAME != null) {
             // Already inside a node block.
@@ -0,0 +1,108 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class DeploySchedulerTest {
+
+    private static final String CLUSTER = "https://tsuru.example.com";
+
+    @Test
+    public void deploymentsOfAnApplicationQueueInOrder() throws Exception {
+        assertEquals(0, DeployScheduler.acquire(CLUSTER, "app", 0, 1), 100);
+
+        List<String> started = new CopyOnWriteArrayList<>();
+        Thread first = new Thread(() -> deploy("app", "first", started));
+        first.start();
+        awaitWaiting(first);
+        Thread second = new Thread(() -> deploy("app", "second", started));
+        second.start();
+        awaitWaiting(second);
+        assertEquals(2, DeployScheduler.getQueuedDeploys());
+        assertTrue(started.isEmpty());
+
+        DeployScheduler.release(CLUSTER, "app");
+        first.join(10000);
+        second.join(10000);
+        assertEquals(Arrays.asList("first", "second"), started);
+        assertEquals(0, DeployScheduler.getRunningDeploys());
+    }
+
+    @Test
+    public void otherApplicationsAreNotQueued() throws Exception {
+        DeployScheduler.acquire(CLUSTER, "app", 0, 1);
+        try {
+            assertEquals(0, DeployScheduler.acquire(CLUSTER, "other", 0, 1), 100);
+            DeployScheduler.release(CLUSTER, "other");
+        } finally {
+            DeployScheduler.release(CLUSTER, "app");
+        }
+    }
+
+    @Test
+    public void interruptedDeploymentsLeaveTheQueue() throws Exception {
+        DeployScheduler.acquire(CLUSTER, "app", 1, 0);
+        Thread waiting = new Thread(() -> {
+            try {
+                DeployScheduler.acquire(CLUSTER, "other", 1, 0);
+                fail("The cluster slot is taken");
+            } catch (InterruptedException e) {
+                // Aborted
+            }
+        });
+        waiting.start();
+        awaitWaiting(waiting);
+        waiting.interrupt();
+        waiting.join(10000);
+        assertEquals(0, DeployScheduler.getQueuedDeploys());
+
+        DeployScheduler.release(CLUSTER, "app");
+        // Nothing left held by the interrupted deployment
+        DeployScheduler.acquire(CLUSTER, "other", 1, 0);
+        DeployScheduler.release(CLUSTER, "other");
+        assertEquals(0, DeployScheduler.getRunningDeploys());
+    }
+
+    @Test
+    public void slotsLeftByTheAgentAreReleasedWithTheStep() throws Exception {
+        DeployScheduler.Slots slots = DeployScheduler.slots(CLUSTER, Collections.singletonMap("maxAppDeploys", "1"));
+        slots.acquire("app");
+        assertEquals(1, DeployScheduler.getRunningDeploys());
+
+        slots.close();
+        assertEquals(0, DeployScheduler.getRunningDeploys());
+        // A late release from the agent frees nothing more
+        slots.release("app");
+        assertEquals(0, DeployScheduler.getRunningDeploys());
+        try {
+            slots.acquire("app");
+            fail("The step is over");
+        } catch (InterruptedException e) {
+            assertEquals(0, DeployScheduler.getRunningDeploys());
+        }
+    }
+
+    private static void deploy(String appName, String name, List<String> started) {
+        try {
+            DeployScheduler.acquire(CLUSTER, appName, 0, 1);
+        } catch (InterruptedException e) {
+            return;
+        }
+        started.add(name);
+        DeployScheduler.release(CLUSTER, appName);
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
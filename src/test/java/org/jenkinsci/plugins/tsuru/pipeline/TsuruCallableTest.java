@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import io.tsuru.client.api.TsuruApi;
+import org.jenkinsci.plugins.tsuru.utils.ArchiveOptions;
+import org.jenkinsci.plugins.tsuru.utils.TarGzip;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class TsuruCallableTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void deployAllKeepsAnIncrementalCachePerSetOfApplications() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        Files.write(new File(workspace, "app.py").toPath(), "print('hello')\n".getBytes(StandardCharsets.UTF_8));
+
+        // As sent by tsuru.deployAll: no appName
+        ArchiveOptions options = archiveOptions(workspace, deployAll("app-us, app-eu"));
+        File cacheDir = options.getCacheDir();
+        assertEquals(new File(workspace.getPath() + "@tsuru-cache"), cacheDir.getParentFile());
+        assertEquals(cacheDir, archiveOptions(workspace, deployAll("app-eu,app-us")).getCacheDir());
+        assertNotEquals(cacheDir, archiveOptions(workspace, deployAll("app-us")).getCacheDir());
+
+        File archive = tmp.newFile("archive.tgz");
+        TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), archive, options);
+        assertTrue(new File(cacheDir, "index.properties").isFile());
+    }
+
+    @Test
+    public void deploysKeepAnIncrementalCachePerApplication() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        HashMap<String, String> args = new HashMap<>();
+        args.put("appName", "app-us");
+        args.put("incrementalArchive", "true");
+
+        assertEquals(new File(workspace.getPath() + "@tsuru-cache", "app-us"), archiveOptions(workspace, args).getCacheDir());
+        args.put("incrementalArchive", "false");
+        assertNull(archiveOptions(workspace, args).getCacheDir());
+    }
+
+    private static HashMap<String, String> deployAll(String appNames) {
+        HashMap<String, String> args = new HashMap<>();
+        args.put("appNames", appNames);
+        args.put("parallelism", "4");
+        args.put("incrementalArchive", "true");
+        return args;
+    }
+
+    private static ArchiveOptions archiveOptions(File workspace, HashMap<String, String> args) {
+        TsuruApi api = new TsuruApi();
+        api.getApiClient().setBasePath("https://tsuru.example.com");
+        return new TsuruCallable<Void>(api, args, new FilePath(workspace), TaskListener.NULL) {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }.archiveOptions();
+    }
+}
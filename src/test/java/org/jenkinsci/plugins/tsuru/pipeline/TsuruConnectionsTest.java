@@ -0,0 +1,104 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import io.tsuru.client.ApiException;
+import io.tsuru.client.api.TsuruApi;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TsuruConnectionsTest {
+
+    private static final String SERVER = "https://tsuru.example.com";
+
+    private static final Map<String, String> NO_OPTIONS = Collections.emptyMap();
+
+    private final AtomicLong now = new AtomicLong(1000000);
+
+    private final AtomicInteger logins = new AtomicInteger();
+
+    private volatile boolean loginFails;
+
+    private TsuruConnections connections;
+
+    @Before
+    public void setUp() {
+        // Tokens live 100s, clients idle for 50s are dropped, 2 clients at most
+        connections = new TsuruConnections(100000, 50000, 2, (api, email, password) -> {
+            if (loginFails) {
+                throw new ApiException("Tsuru is down");
+            }
+            return "token-" + logins.incrementAndGet();
+        }, now::get);
+    }
+
+    @Test
+    public void reusesTheTokenUntilItIsRenewed() throws Exception {
+        TsuruApi api = connections.get(SERVER + "/", "dev@example.com", "secret", null, NO_OPTIONS);
+        assertEquals(SERVER, api.getApiClient().getBasePath());
+        assertEquals("bearer token-1", authorization(api));
+
+        now.addAndGet(40000);
+        assertSame(api, connections.get(SERVER, "dev@example.com", "secret", null, NO_OPTIONS));
+        assertEquals(1, logins.get());
+
+        // Three quarters of the lifetime
+        now.addAndGet(40000);
+        TsuruApi renewed = connections.get(SERVER, "dev@example.com", "secret", null, NO_OPTIONS);
+        assertEquals("bearer token-2", authorization(renewed));
+        assertEquals(2, logins.get());
+        // Handed out clients never change, the renewed token has its own
+        assertNotSame(api, renewed);
+        assertEquals("bearer token-1", authorization(api));
+    }
+
+    @Test
+    public void keepsTheTokenWhenTheRenewalFails() throws Exception {
+        connections.get(SERVER, "dev@example.com", "secret", null, NO_OPTIONS);
+        loginFails = true;
+
+        now.addAndGet(40000);
+        connections.get(SERVER, "dev@example.com", "secret", null, NO_OPTIONS);
+        now.addAndGet(40000);
+        assertEquals("bearer token-1", authorization(connections.get(SERVER, "dev@example.com", "secret", null, NO_OPTIONS)));
+
+        now.addAndGet(20000);
+        try {
+            connections.get(SERVER, "dev@example.com", "secret", null, NO_OPTIONS);
+            fail("The token expired");
+        } catch (ApiException e) {
+            assertEquals("Tsuru is down", e.getMessage());
+        }
+    }
+
+    @Test
+    public void credentialsHaveTheirOwnClient() throws Exception {
+        TsuruApi dev = connections.get(SERVER, "dev@example.com", "secret", null, NO_OPTIONS);
+        TsuruApi other = connections.get(SERVER, "dev@example.com", "changed", null, NO_OPTIONS);
+        TsuruApi token = connections.get(SERVER, null, null, "api-token", NO_OPTIONS);
+
+        assertNotSame(dev, other);
+        assertEquals("bearer api-token", authorization(token));
+        assertEquals(2, logins.get());
+        // Bounded, the least recently used went first
+        assertEquals(2, connections.size());
+        assertNotSame(dev, connections.get(SERVER, "dev@example.com", "secret", null, NO_OPTIONS));
+    }
+
+    @Test
+    public void dropsIdleClients() throws Exception {
+        connections.get(SERVER, null, null, "api-token", NO_OPTIONS);
+        now.addAndGet(50000);
+        connections.get(SERVER, null, null, "other-token", NO_OPTIONS);
+        assertEquals(1, connections.size());
+    }
+
+    private static String authorization(TsuruApi api) {
+        return api.getApiClient().getDefaultHeaders().get("Authorization");
+    }
+}
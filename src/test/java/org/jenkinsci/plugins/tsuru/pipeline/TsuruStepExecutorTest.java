@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.tsuru.pipeline;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class TsuruStepExecutorTest {
+
+    @Test
+    public void completesWithTheResult() throws Exception {
+        assertEquals("deployed", TsuruStepExecutor.submit(() -> "deployed").get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelInterruptsTheRunningStep() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CompletableFuture<Void> step = TsuruStepExecutor.submit(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return null;
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(1, TsuruStepExecutor.getActiveSteps());
+        assertTrue(step.cancel(true));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertTrue(step.isCancelled());
+    }
+
+    @Test
+    public void failuresCompleteTheFuture() throws Exception {
+        CompletableFuture<Void> step = TsuruStepExecutor.submit(() -> {
+            throw new IllegalStateException("Tsuru deployment FAILED");
+        });
+        try {
+            step.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void blockedStepsDoNotStarveTheOthers() throws Exception {
+        CountDownLatch deploysQueued = new CountDownLatch(1);
+        List<CompletableFuture<Void>> blocked = new ArrayList<>();
+        try {
+            // As many steps as threads, all waiting for their agent
+            for (int i = 0; i < TsuruStepExecutor.THREADS; i++) {
+                blocked.add(TsuruStepExecutor.submit(() -> TsuruStepExecutor.blocking(() -> {
+                    deploysQueued.await();
+                    return null;
+                })));
+            }
+            assertEquals("done", TsuruStepExecutor.submit(() -> "done").get(10, TimeUnit.SECONDS));
+            assertEquals(TsuruStepExecutor.THREADS, TsuruStepExecutor.getBlockedSteps());
+        } finally {
+            deploysQueued.countDown();
+        }
+        for (CompletableFuture<Void> step : blocked) {
+            step.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(0, TsuruStepExecutor.getBlockedSteps());
+    }
+}
@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DeployMetricsTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void countsArchivedFilesAndSizes() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        new File(workspace, "static").mkdirs();
+        Files.write(new File(workspace, "app.py").toPath(), "print('hello')\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(workspace, "static/site.css").toPath(), "body { color: red; }\n".getBytes(StandardCharsets.UTF_8));
+
+        DeployMetrics metrics = new DeployMetrics("deploy", "app");
+        ArchiveOptions options = new ArchiveOptions();
+        options.setMetrics(metrics);
+        File archive = tmp.newFile("archive.tgz");
+        long start = System.nanoTime();
+        TarGzip.compressFiles(Collections.singletonList(workspace), archive, options);
+        metrics.time(DeployMetrics.Phase.COMPRESSION, start);
+
+        // Directories are not counted
+        assertEquals(2, metrics.getFiles());
+        assertEquals(15 + 21, metrics.getBytes());
+        assertEquals(archive.length(), metrics.getCompressedBytes());
+        assertTrue(metrics.getDuration(DeployMetrics.Phase.COMPRESSION) >= 0);
+        assertEquals(-1, metrics.getDuration(DeployMetrics.Phase.UPLOAD));
+        assertTrue(metrics.toString(), metrics.toString().startsWith("compression "));
+        assertTrue(metrics.toString(), metrics.toString().contains("| 2 files"));
+    }
+
+    @Test
+    public void copiesArchiveMeasuresOnly() {
+        DeployMetrics archive = new DeployMetrics("deploy", null);
+        archive.addFile(100);
+        archive.setCompressedBytes(40);
+        archive.time(DeployMetrics.Phase.WALK, System.nanoTime());
+
+        DeployMetrics app = archive.forApp("app-eu");
+        app.setUploadedBytes(3 * 1024 * 1024);
+        app.time(DeployMetrics.Phase.UPLOAD, System.nanoTime() - 2000000000L);
+
+        assertEquals("app-eu", app.getAppName());
+        assertEquals(1, app.getFiles());
+        assertEquals(40, app.getCompressedBytes());
+        assertEquals(1.5, app.getUploadRate(), 0.01);
+        assertEquals(0, archive.getUploadedBytes());
+        assertEquals(-1, archive.getDuration(DeployMetrics.Phase.UPLOAD));
+    }
+}
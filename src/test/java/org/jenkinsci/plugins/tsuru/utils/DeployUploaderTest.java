@@ -0,0 +1,174 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DeployUploaderTest {
+
+    private static final byte[] ARCHIVE = new byte[8 * 1024 * 1024];
+
+    static {
+        // Incompressible, as archives are
+        new Random(42).nextBytes(ARCHIVE);
+    }
+
+    private ServerSocket server;
+
+    private Thread serverThread;
+
+    // Connections dropped while receiving the body, before one is served
+    private volatile int drops;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private volatile byte[] receivedBody;
+
+    private DeployUploader uploader;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        serverThread = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                    serve(socket, connections.incrementAndGet() <= drops);
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+        serverThread.start();
+
+        uploader = new DeployUploader("http://127.0.0.1:" + server.getLocalPort(), "bearer token");
+        uploader.setRetryDelay(10);
+        uploader.setMaxRetryDelay(40);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        serverThread.join(5000);
+    }
+
+    @Test
+    public void retriesAnUploadFailingWhileSent() throws Exception {
+        drops = 2;
+        uploader.setRetries(3);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        uploader.setLog(new PrintStream(log, true, "UTF-8"));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        uploader.deploy("app", out -> out.write(ARCHIVE), "message", null, output);
+
+        assertEquals(3, connections.get());
+        assertEquals("OK\n", new String(output.toByteArray(), StandardCharsets.UTF_8));
+        assertTrue(contains(receivedBody, ARCHIVE));
+        String messages = new String(log.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(messages, messages.contains("retrying") && messages.contains("(2/3)"));
+    }
+
+    @Test
+    public void givesUpAfterTheRetries() throws Exception {
+        drops = 10;
+        uploader.setRetries(1);
+        try {
+            uploader.deploy("app", out -> out.write(ARCHIVE), null, null, new ByteArrayOutputStream());
+            fail("Upload should have failed");
+        } catch (UploadFailedException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(2, connections.get());
+    }
+
+    @Test
+    public void doesNotRetryWhenTheArchiveCantBeRead() throws Exception {
+        uploader.setRetries(3);
+        try {
+            uploader.deploy("app", out -> {
+                out.write(ARCHIVE, 0, 1024);
+                throw new FileNotFoundException("app.js");
+            }, null, null, new ByteArrayOutputStream());
+            fail("Upload should have failed");
+        } catch (UploadFailedException e) {
+            assertTrue(e.getCause() instanceof FileNotFoundException);
+        }
+        assertEquals(1, awaitConnections(1));
+    }
+
+    /**
+     * The upload may give up before the server thread has accepted its connection
+     */
+    private int awaitConnections(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connections.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return connections.get();
+    }
+
+    private void serve(Socket socket, boolean drop) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        while (!readLine(in).isEmpty()) {
+            // Headers
+        }
+        if (drop) {
+            in.read(new byte[1024]);
+            // Resets the connection, as a flaky link does
+            socket.setSoLinger(true, 0);
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int size;
+        while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+            byte[] chunk = new byte[size];
+            new DataInputStream(in).readFully(chunk);
+            body.write(chunk);
+            readLine(in);
+        }
+        readLine(in);
+        receivedBody = body.toByteArray();
+
+        OutputStream out = socket.getOutputStream();
+        out.write("HTTP/1.1 200 OK\r\nContent-Length: 3\r\nConnection: close\r\n\r\nOK\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static boolean contains(byte[] data, byte[] part) {
+        for (int i = 0; data != null && i + part.length <= data.length; i++) {
+            if (regionMatches(data, i, part, 16) && regionMatches(data, i, part, part.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] part, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] != part[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
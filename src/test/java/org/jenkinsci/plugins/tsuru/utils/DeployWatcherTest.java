@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DeployWatcherTest {
+
+    private HttpServer server;
+
+    private DeployWatcher watcher;
+
+    // Responses of successive polls of /deploys/d2
+    private List<String> polls;
+
+    private final AtomicInteger pollCount = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/deploys", exchange -> {
+            String body;
+            if (exchange.getRequestURI().getPath().equals("/deploys/d2")) {
+                body = polls.get(Math.min(pollCount.getAndIncrement(), polls.size() - 1));
+            } else {
+                body = "[{\"ID\":\"d2\",\"App\":\"app\"}]";
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+
+        watcher = new DeployWatcher("http://127.0.0.1:" + server.getAddress().getPort(), "bearer token");
+        watcher.setInitialDelay(10);
+        watcher.setMaxDelay(40);
+        watcher.setStartTimeout(200);
+        watcher.setTimeout(5000);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void resumesTheLogUntilTheDeploymentEnds() throws Exception {
+        polls = Arrays.asList(
+                "{\"ID\":\"d2\",\"Duration\":-1,\"Log\":\"step 1\\n\"}",
+                "{\"ID\":\"d2\",\"Duration\":-1,\"Log\":\"step 1\\nstep 2\\n\"}",
+                "{\"ID\":\"d2\",\"Duration\":1000,\"Image\":\"app:v2\",\"Log\":\"step 1\\nstep 2\\nOK\\n\"}");
+
+        assertEquals("d2", watcher.awaitDeploy("app", "d1"));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // "step 1\n" was received before the connection dropped
+        assertTrue(watcher.watch("d2", 7, output));
+        assertEquals("step 2\nOK\n", new String(output.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(3, pollCount.get());
+    }
+
+    @Test
+    public void reportsFailedDeployments() throws Exception {
+        polls = Arrays.asList("{\"ID\":\"d2\",\"Duration\":1000,\"Error\":\"build failed\",\"Log\":\"step 1\\n\"}");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertFalse(watcher.watch("d2", 0, output));
+        assertEquals("step 1\n", new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void noNewDeployment() throws Exception {
+        // The upload never reached Tsuru, d2 is the previous deployment
+        assertNull(watcher.awaitDeploy("app", "d2"));
+    }
+}
@@ -0,0 +1,304 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class TarGzipTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parallelGzipRoundTrip() throws Exception {
+        byte[] data = new byte[3 * 1024 * 1024 + 123];
+        Random random = new Random(42);
+        for (int i = 0; i < data.length; i++) {
+            // Compressible but not trivial content
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new ParallelGZIPOutputStream(compressed, 4, 64 * 1024, 6)) {
+            out.write(data, 0, 1000);
+            out.write(data, 1000, data.length - 1000);
+        }
+
+        byte[] inflated = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+        assertArrayEquals(data, inflated);
+    }
+
+    @Test
+    public void parallelGzipEmptyStream() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGZIPOutputStream(compressed, 2, 64 * 1024, 6).close();
+
+        byte[] inflated = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+        assertEquals(0, inflated.length);
+    }
+
+    @Test
+    public void compressFilesWithParallelGzip() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        write(new File(workspace, "app.py"), "print('hello')\n");
+        write(new File(workspace, "static/css/site.css"), "body { color: red; }\n");
+
+        ArchiveOptions options = new ArchiveOptions();
+        options.setThreads(3);
+        options.setBlockSize(32 * 1024);
+        File archive = tmp.newFile("archive.tgz");
+        TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), archive, options);
+
+        Map<String, String> entries = readArchive(archive);
+        assertEquals("print('hello')\n", entries.get("./app.py"));
+        assertEquals("body { color: red; }\n", entries.get("./static/css/site.css"));
+        assertTrue(entries.containsKey("./static/css/"));
+    }
+
+    @Test
+    public void failedArchiveFreesItsCompressors() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        byte[] data = new byte[1024 * 1024];
+        new Random(42).nextBytes(data);
+        Files.write(new File(workspace, "big.bin").toPath(), data);
+
+        ArchiveOptions options = new ArchiveOptions();
+        options.setThreads(3);
+        options.setBlockSize(32 * 1024);
+        final boolean[] closed = {false};
+        // Fails in the middle of the archive
+        OutputStream broken = new OutputStream() {
+            private int written = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (++written > 64 * 1024) {
+                    throw new IOException("Connection reset");
+                }
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        try {
+            TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), broken, options);
+            fail("The output is broken");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+        assertTrue(closed[0]);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (gzipThreads() > 0) {
+            assertTrue("Compression workers left running", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int gzipThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("tsuru-gzip-") && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void compressionStrategies() {
+        assertEquals(Deflater.DEFAULT_COMPRESSION, CompressionStrategy.parse(null).getLevel());
+        assertEquals(Deflater.NO_COMPRESSION, CompressionStrategy.parse("store").getLevel());
+        assertEquals(1, CompressionStrategy.parse("1").getLevel());
+
+        CompressionStrategy auto = CompressionStrategy.parse("auto:1");
+        assertTrue(auto.isSkipCompressed());
+        assertEquals(Deflater.NO_COMPRESSION, auto.levelFor("lib/app.JAR", 10 * 1024 * 1024));
+        assertEquals(1, auto.levelFor("lib/app.jar", 100));
+        assertEquals(1, auto.levelFor("src/app.java", 10 * 1024 * 1024));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCompressionStrategy() {
+        CompressionStrategy.parse("fastest");
+    }
+
+    @Test
+    public void compressFilesStoringCompressedFiles() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        byte[] image = new byte[256 * 1024];
+        new Random(1).nextBytes(image);
+        Files.write(new File(workspace, "logo.png").toPath(), image);
+        write(new File(workspace, "index.html"), "<html></html>\n");
+
+        for (int threads : new int[]{1, 4}) {
+            ArchiveOptions options = new ArchiveOptions();
+            options.setThreads(threads);
+            options.setCompression(CompressionStrategy.parse("auto"));
+            File archive = tmp.newFile("archive-" + threads + ".tgz");
+            TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), archive, options);
+
+            Map<String, String> entries = readArchive(archive);
+            assertEquals("<html></html>\n", entries.get("./index.html"));
+            assertTrue(entries.containsKey("./logo.png"));
+        }
+    }
+
+    @Test
+    public void incrementalArchiveReusesCachedMembers() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        write(new File(workspace, "app.py"), "print('hello')\n");
+        write(new File(workspace, "lib/util.py"), "def util():\n    pass\n");
+
+        ArchiveOptions options = new ArchiveOptions();
+        options.setCacheDir(tmp.newFolder("cache"));
+
+        File first = tmp.newFile("first.tgz");
+        TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), first, options);
+        assertEquals("def util():\n    pass\n", readArchive(first).get("./lib/util.py"));
+
+        write(new File(workspace, "app.py"), "print('hello world')\n");
+        File second = tmp.newFile("second.tgz");
+        TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), second, options);
+
+        Map<String, String> entries = readArchive(second);
+        assertEquals("print('hello world')\n", entries.get("./app.py"));
+        assertEquals("def util():\n    pass\n", entries.get("./lib/util.py"));
+        // The old content of app.py is no longer referenced
+        assertEquals(2, new File(options.getCacheDir(), "members").list().length);
+    }
+
+    @Test
+    public void archivesSharingACacheTakeTurns() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            big.append("line ").append(i).append('\n');
+        }
+        write(new File(workspace, "big.txt"), big.toString());
+        write(new File(workspace, "app.py"), "print('hello')\n");
+
+        ArchiveOptions options = new ArchiveOptions();
+        options.setThreads(2);
+        options.setBlockSize(32 * 1024);
+        options.setCacheDir(tmp.newFolder("cache"));
+
+        ArchiveCache held = ArchiveCache.lock(options.getCacheDir());
+        // Member being compressed by another run
+        File compressing = held.newTempMember();
+        File archive = tmp.newFile("archive.tgz");
+        Thread other = new Thread(() -> {
+            try {
+                TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), archive, options);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        other.start();
+        other.join(500);
+        assertTrue("The archive waits for the cache", other.isAlive());
+
+        held.close();
+        other.join(10000);
+        assertFalse(other.isAlive());
+        Map<String, String> entries = readArchive(archive);
+        assertEquals(big.toString(), entries.get("./big.txt"));
+        assertEquals("print('hello')\n", entries.get("./app.py"));
+        assertTrue(compressing.isFile());
+    }
+
+    @Test
+    public void reproducibleArchiveIgnoresTimes() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        write(new File(workspace, "app.py"), "print('hello')\n");
+        write(new File(workspace, "lib/util.py"), "def util():\n    pass\n");
+        write(new File(workspace, "lib/models.py"), "class Model:\n    pass\n");
+
+        for (boolean incremental : new boolean[]{false, true}) {
+            ArchiveOptions options = new ArchiveOptions();
+            options.setReproducible(true);
+            if (incremental) {
+                options.setCacheDir(tmp.newFolder());
+            }
+
+            File first = tmp.newFile();
+            TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), first, options);
+
+            // A fresh checkout: same content, new mtimes, files listed in another order
+            for (File f : new File[]{new File(workspace, "app.py"), new File(workspace, "lib/util.py")}) {
+                assertTrue(f.setLastModified(f.lastModified() - 3600 * 1000));
+            }
+            List<File> reversed = new ArrayList<>(Arrays.asList(workspace.listFiles()));
+            Collections.reverse(reversed);
+            File second = tmp.newFile();
+            TarGzip.compressFiles(reversed, second, options);
+
+            assertEquals(ArchiveCache.sha256(first), ArchiveCache.sha256(second));
+            assertEquals(Arrays.asList("./app.py", "./lib/", "./lib/models.py", "./lib/util.py"), new ArrayList<>(readArchive(second).keySet()));
+
+            // But a content change is seen, even with an unchanged size
+            write(new File(workspace, "app.py"), "print('HELLO')\n");
+            File third = tmp.newFile();
+            TarGzip.compressFiles(reversed, third, options);
+            assertNotEquals(ArchiveCache.sha256(first), ArchiveCache.sha256(third));
+            assertEquals("print('HELLO')\n", readArchive(third).get("./app.py"));
+            write(new File(workspace, "app.py"), "print('hello')\n");
+        }
+    }
+
+    @Test
+    public void fingerprintFollowsContentOnly() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        write(new File(workspace, "app.py"), "print('hello')\n");
+        write(new File(workspace, "lib/util.py"), "def util():\n    pass\n");
+        write(new File(workspace, "build.log"), "started\n");
+
+        ArchiveOptions options = new ArchiveOptions();
+        options.setIgnore(TsuruIgnore.compile(Collections.singletonList("*.log")));
+        String fingerprint = TarGzip.fingerprint(Arrays.asList(workspace.listFiles()), options);
+
+        // Touched and ignored files do not count
+        File util = new File(workspace, "lib/util.py");
+        assertTrue(util.setLastModified(util.lastModified() - 3600 * 1000));
+        write(new File(workspace, "build.log"), "finished\n");
+        List<File> reversed = new ArrayList<>(Arrays.asList(workspace.listFiles()));
+        Collections.reverse(reversed);
+        assertEquals(fingerprint, TarGzip.fingerprint(reversed, options));
+
+        // The cache index gives the same fingerprint
+        options.setCacheDir(tmp.newFolder("cache"));
+        TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), tmp.newFile(), options);
+        assertEquals(fingerprint, TarGzip.fingerprint(reversed, options));
+
+        write(new File(workspace, "app.py"), "print('HELLO')\n");
+        assertNotEquals(fingerprint, TarGzip.fingerprint(reversed, options));
+    }
+
+    static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Map<String, String> readArchive(File archive) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (TarArchiveInputStream tais = new TarArchiveInputStream(new GZIPInputStream(new FileInputStream(archive)))) {
+            TarArchiveEntry entry;
+            while ((entry = tais.getNextTarEntry()) != null) {
+                entries.put(entry.getName(), entry.isFile() ? IOUtils.toString(tais, StandardCharsets.UTF_8) : null);
+            }
+        }
+        return entries;
+    }
+}
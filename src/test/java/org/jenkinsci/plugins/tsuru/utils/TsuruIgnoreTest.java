@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TsuruIgnoreTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void namesMatchAtAnyDepth() {
+        TsuruIgnore ignore = TsuruIgnore.compile(Arrays.asList("# comment", "", "node_modules", "*.log"));
+        assertTrue(ignore.isIgnored("node_modules", true));
+        assertTrue(ignore.isIgnored("web/node_modules", true));
+        assertTrue(ignore.isIgnored("debug.log", false));
+        assertTrue(ignore.isIgnored("logs/app/debug.log", false));
+        assertFalse(ignore.isIgnored("debug.log.txt", false));
+        assertFalse(ignore.isIgnored("src/app.py", false));
+    }
+
+    @Test
+    public void anchoredAndDirectoryPatterns() {
+        TsuruIgnore ignore = TsuruIgnore.compile(Arrays.asList("/build", "docs/*.md", "tmp/"));
+        assertTrue(ignore.isIgnored("build", true));
+        assertFalse(ignore.isIgnored("src/build", true));
+        assertTrue(ignore.isIgnored("docs/README.md", false));
+        assertFalse(ignore.isIgnored("docs/api/README.md", false));
+        assertTrue(ignore.isIgnored("cache/tmp", true));
+        assertFalse(ignore.isIgnored("tmp", false));
+    }
+
+    @Test
+    public void doubleStarAndNegation() {
+        TsuruIgnore ignore = TsuruIgnore.compile(Arrays.asList("**/test/**", "*.py[co]", "!keep.pyc", "a/**/z"));
+        assertTrue(ignore.isIgnored("test/unit.py", false));
+        assertTrue(ignore.isIgnored("src/test/unit.py", false));
+        assertTrue(ignore.isIgnored("mod/cache.pyc", false));
+        assertFalse(ignore.isIgnored("mod/keep.pyc", false));
+        assertTrue(ignore.isIgnored("a/z", false));
+        assertTrue(ignore.isIgnored("a/b/c/z", false));
+        assertFalse(ignore.isIgnored("b/a/z", false));
+    }
+
+    @Test
+    public void invalidPatternsAreNamed() {
+        try {
+            TsuruIgnore.compile(Arrays.asList("*.log", "cache/[z-a]*"));
+            fail("The range is reversed");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid .tsuruignore pattern: cache/[z-a]*", e.getMessage());
+        }
+    }
+
+    @Test
+    public void theLastPatternWinsBetweenNamesAndGlobs() {
+        TsuruIgnore ignore = TsuruIgnore.compile(Arrays.asList("*.log", "!keep.log", "keep.log/", "logs/**", "!logs/app.log"));
+        assertTrue(ignore.isIgnored("debug.log", false));
+        assertFalse(ignore.isIgnored("keep.log", false));
+        assertTrue(ignore.isIgnored("keep.log", true));
+        assertTrue(ignore.isIgnored("logs/other.txt", false));
+        assertFalse(ignore.isIgnored("logs/app.log", false));
+        assertEquals(TsuruIgnore.FILE_IGNORED | TsuruIgnore.DIRECTORY_IGNORED, ignore.match("web/debug.log"));
+        assertEquals(TsuruIgnore.DIRECTORY_IGNORED, ignore.match("web/keep.log"));
+        assertEquals(0, ignore.match("app.py"));
+    }
+
+    @Test
+    public void ignoredDirectoriesArePrunedFromTheArchive() throws Exception {
+        File workspace = tmp.newFolder("workspace");
+        TarGzipTest.write(new File(workspace, "app.js"), "console.log(1)\n");
+        TarGzipTest.write(new File(workspace, "web/node_modules/lib/index.js"), "module.exports = 1\n");
+        TarGzipTest.write(new File(workspace, "web/main.js"), "require('lib')\n");
+        TarGzipTest.write(new File(workspace, ".tsuruignore"), "node_modules/\n");
+
+        ArchiveOptions options = new ArchiveOptions();
+        options.setIgnore(TsuruIgnore.load(workspace));
+        File archive = tmp.newFile("archive.tgz");
+        TarGzip.compressFiles(Arrays.asList(workspace.listFiles()), archive, options);
+
+        Map<String, String> entries = TarGzipTest.readArchive(archive);
+        assertTrue(entries.containsKey("./web/main.js"));
+        assertFalse(entries.containsKey("./web/node_modules/"));
+        assertFalse(entries.containsKey("./web/node_modules/lib/index.js"));
+    }
+}
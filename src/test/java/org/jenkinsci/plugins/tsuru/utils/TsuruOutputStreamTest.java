@@ -0,0 +1,42 @@
+package org.jenkinsci.plugins.tsuru.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TsuruOutputStreamTest {
+
+    @Test
+    public void forwardsOutputAndDetectsOk() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        TsuruOutputStream output = new TsuruOutputStream(console);
+
+        // The marker may be split across chunks
+        output.print(" ---> Building image\n ---> Deploying\nO");
+        assertFalse(output.isOk());
+        output.print("K");
+        assertTrue(output.isOk());
+        output.print("\n\n");
+        assertTrue(output.isOk());
+
+        assertEquals(" ---> Building image\n ---> Deploying\nOK\n\n", new String(console.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(console.size(), output.getCount());
+    }
+
+    @Test
+    public void okMustBeTheLastLine() throws Exception {
+        TsuruOutputStream output = new TsuruOutputStream(new ByteArrayOutputStream());
+        output.print("OK\n ---> Error: the build failed\n");
+        assertFalse(output.isOk());
+
+        output = new TsuruOutputStream(new ByteArrayOutputStream());
+        output.print("BUILD OK\n");
+        assertFalse(output.isOk());
+
+        output = new TsuruOutputStream(new ByteArrayOutputStream());
+        assertFalse(output.isOk());
+    }
+}